@@ -0,0 +1,26 @@
+package fr.techgp.nimbus.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * <p>This interface is implemented by the response {@link OutputStream} of servers able to send content without copying it
+ * through a heap buffer, such as {@link fr.techgp.nimbus.server.impl.JettyServer}.</p>
+ *
+ * <p>A {@link Render} checks for it using "instanceof" and falls back to {@link OutputStream#write(byte[])} otherwise,
+ * for instance when the stream compresses data.</p>
+ */
+public interface ContentOutput {
+
+	/** sends "buffer" as the whole content of the response, such as a direct or memory-mapped buffer, and waits until it is sent */
+	public void sendContent(ByteBuffer buffer) throws IOException;
+
+	/** sends what remains in "channel" as the whole content of the response, and waits until it is sent */
+	public void sendContent(ReadableByteChannel channel) throws IOException;
+
+	/** writes "buffer" as a part of the response content, the stream being still writable afterwards */
+	public void write(ByteBuffer buffer) throws IOException;
+
+}
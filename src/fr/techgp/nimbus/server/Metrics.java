@@ -0,0 +1,261 @@
+package fr.techgp.nimbus.server;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * <p>This class is a small metrics registry, exported in Prometheus text format :</p>
+ * <ul>
+ * <li>{@link Counter} and {@link Histogram} are updated without locks, using {@link LongAdder} and {@link DoubleAdder}</li>
+ * <li>gauges are {@link DoubleSupplier} read at export time</li>
+ * <li>metrics with the same name are grouped in a family, with optional labels such as <code>status="2xx"</code></li>
+ * <li>registration is expected at startup, export reads copy-on-write lists and never blocks updates</li>
+ * </ul>
+ *
+ * <pre>
+ * Metrics metrics = new Metrics().jvm();
+ * Metrics.Counter counter = metrics.counter("app_logins_total", "Number of logins", null);
+ * router.get("/utils/metrics", (req, res) -> Render.string(metrics.export()));
+ * </pre>
+ *
+ * @see https://prometheus.io/docs/instrumenting/exposition_formats/
+ */
+public class Metrics {
+
+	/** the content type of the Prometheus text format */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	/** default histogram bounds, in seconds, for request latencies */
+	public static final double[] LATENCY_BOUNDS = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	/** A monotonic counter */
+	public static final class Counter {
+		private final LongAdder value = new LongAdder();
+
+		public void increment() {
+			this.value.increment();
+		}
+
+		public void add(long delta) {
+			this.value.add(delta);
+		}
+
+		public long get() {
+			return this.value.sum();
+		}
+	}
+
+	/** A histogram with fixed bucket upper bounds */
+	public static final class Histogram {
+		private final double[] bounds;
+		private final LongAdder[] buckets;
+		private final LongAdder count = new LongAdder();
+		private final DoubleAdder sum = new DoubleAdder();
+
+		public Histogram(double[] bounds) {
+			this.bounds = bounds.clone();
+			this.buckets = new LongAdder[bounds.length];
+			for (int i = 0; i < bounds.length; i++) {
+				this.buckets[i] = new LongAdder();
+			}
+		}
+
+		/** records a value, in the unit of the bounds */
+		public void observe(double value) {
+			for (int i = 0; i < this.bounds.length; i++) {
+				if (value <= this.bounds[i]) {
+					this.buckets[i].increment();
+					break;
+				}
+			}
+			this.count.increment();
+			this.sum.add(value);
+		}
+
+		public long count() {
+			return this.count.sum();
+		}
+
+		public double sum() {
+			return this.sum.sum();
+		}
+	}
+
+	/** A named group of samples sharing the same help text and type */
+	private static final class Family {
+		private final String name;
+		private final String help;
+		private final String type;
+		private final List<Sample> samples = new CopyOnWriteArrayList<>();
+
+		public Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	/** A sample, with optional labels, and a value provided by a gauge, a counter or a histogram */
+	private static final class Sample {
+		private final String labels;
+		private final DoubleSupplier gauge;
+		private final Counter counter;
+		private final Histogram histogram;
+
+		public Sample(String labels, DoubleSupplier gauge, Counter counter, Histogram histogram) {
+			this.labels = labels;
+			this.gauge = gauge;
+			this.counter = counter;
+			this.histogram = histogram;
+		}
+	}
+
+	private final Map<String, Family> familiesByName = new ConcurrentHashMap<>();
+	private final List<Family> families = new CopyOnWriteArrayList<>();
+
+	/** registers a new {@link Counter}, "labels" being null or a Prometheus label list such as <code>method="GET"</code>, or returns the existing one */
+	public Counter counter(String name, String help, String labels) {
+		Family family = family(name, help, "counter");
+		synchronized (family) {
+			Sample sample = find(family, labels);
+			if (sample != null && sample.counter != null)
+				return sample.counter;
+			Counter counter = new Counter();
+			family.samples.add(new Sample(labels, null, counter, null));
+			return counter;
+		}
+	}
+
+	/** registers a gauge that will be read at export time */
+	public Metrics gauge(String name, String help, String labels, DoubleSupplier value) {
+		family(name, help, "gauge").samples.add(new Sample(labels, value, null, null));
+		return this;
+	}
+
+	/** registers a counter whose value is provided by another component and read at export time */
+	public Metrics counter(String name, String help, String labels, DoubleSupplier value) {
+		family(name, help, "counter").samples.add(new Sample(labels, value, null, null));
+		return this;
+	}
+
+	/** registers a new {@link Histogram} with the specified bucket upper bounds, or returns the existing one */
+	public Histogram histogram(String name, String help, String labels, double[] bounds) {
+		Family family = family(name, help, "histogram");
+		synchronized (family) {
+			Sample sample = find(family, labels);
+			if (sample != null && sample.histogram != null)
+				return sample.histogram;
+			Histogram histogram = new Histogram(bounds);
+			family.samples.add(new Sample(labels, null, null, histogram));
+			return histogram;
+		}
+	}
+
+	/** then registers JVM gauges : heap, garbage collectors, buffer pools and threads */
+	public Metrics jvm() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		gauge("jvm_memory_heap_used_bytes", "Used heap memory", null, () -> memory.getHeapMemoryUsage().getUsed());
+		gauge("jvm_memory_heap_committed_bytes", "Committed heap memory", null, () -> memory.getHeapMemoryUsage().getCommitted());
+		gauge("jvm_memory_heap_max_bytes", "Maximum heap memory", null, () -> memory.getHeapMemoryUsage().getMax());
+		gauge("jvm_memory_nonheap_used_bytes", "Used non-heap memory", null, () -> memory.getNonHeapMemoryUsage().getUsed());
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			String labels = "gc=\"" + escape(gc.getName()) + "\"";
+			counter("jvm_gc_collections_total", "Number of garbage collections", labels, gc::getCollectionCount);
+			counter("jvm_gc_collection_seconds_total", "Time spent in garbage collections", labels, () -> gc.getCollectionTime() / 1000d);
+		}
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			String labels = "pool=\"" + escape(pool.getName()) + "\"";
+			gauge("jvm_buffer_pool_used_bytes", "Used bytes of buffer pools (direct, mapped)", labels, pool::getMemoryUsed);
+			gauge("jvm_buffer_pool_capacity_bytes", "Capacity of buffer pools (direct, mapped)", labels, pool::getTotalCapacity);
+			gauge("jvm_buffer_pool_buffers", "Number of buffers in buffer pools (direct, mapped)", labels, pool::getCount);
+		}
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		gauge("jvm_threads", "Number of live threads", null, threads::getThreadCount);
+		return this;
+	}
+
+	/** exports all metrics in Prometheus text format */
+	public String export() {
+		StringBuilder sb = new StringBuilder(4096);
+		for (Family family : this.families) {
+			sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (Sample sample : family.samples) {
+				if (sample.histogram != null) {
+					Histogram h = sample.histogram;
+					long cumulative = 0;
+					for (int i = 0; i < h.bounds.length; i++) {
+						cumulative += h.buckets[i].sum();
+						line(sb, family.name + "_bucket", sample.labels, "le=\"" + format(h.bounds[i]) + "\"", cumulative);
+					}
+					long count = h.count();
+					line(sb, family.name + "_bucket", sample.labels, "le=\"+Inf\"", Math.max(count, cumulative));
+					line(sb, family.name + "_sum", sample.labels, null, h.sum());
+					line(sb, family.name + "_count", sample.labels, null, count);
+				} else if (sample.counter != null) {
+					line(sb, family.name, sample.labels, null, sample.counter.get());
+				} else {
+					line(sb, family.name, sample.labels, null, sample.gauge.getAsDouble());
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/** returns the family for "name", creating it if needed */
+	private Family family(String name, String help, String type) {
+		return this.familiesByName.computeIfAbsent(name, (n) -> {
+			Family family = new Family(n, help, type);
+			this.families.add(family);
+			return family;
+		});
+	}
+
+	/** returns the sample of "family" with the specified labels, or null, so that components created again (after a reload) keep their series */
+	private static Sample find(Family family, String labels) {
+		for (Sample sample : family.samples) {
+			if (Objects.equals(sample.labels, labels))
+				return sample;
+		}
+		return null;
+	}
+
+	/** appends a sample line, such as <code>name{labels,extra} value</code> */
+	private static void line(StringBuilder sb, String name, String labels, String extra, double value) {
+		sb.append(name);
+		if (labels != null || extra != null) {
+			sb.append('{');
+			if (labels != null)
+				sb.append(labels);
+			if (labels != null && extra != null)
+				sb.append(',');
+			if (extra != null)
+				sb.append(extra);
+			sb.append('}');
+		}
+		sb.append(' ').append(format(value)).append('\n');
+	}
+
+	/** formats integral values without decimal part */
+	private static String format(double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	/** escapes a label value */
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+}
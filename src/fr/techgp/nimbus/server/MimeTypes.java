@@ -3,6 +3,7 @@ package fr.techgp.nimbus.server;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -25,6 +26,7 @@ public final class MimeTypes {
 	private static final Map<String, String> mimetypes = new HashMap<>();
 	private static final List<Function<String, String>> resolvers = new ArrayList<>(1);
 	private static String defaultMimeType = null;
+	private static volatile boolean lazyDefaults = false;
 
 	public static final String TEXT = "text/plain";
 	public static final String HTML = "text/html";
@@ -34,18 +36,40 @@ public final class MimeTypes {
 	public static final String BINARY = "application/octet-stream";
 	public static final String MULTIPART_FORMDATA = "multipart/form-data";
 
+	/** This holder loads the default MIME types when first accessed, i.e. on the first lookup after {@link MimeTypes#loadDefaultMimeTypesLazily()} */
+	private static final class LazyDefaults {
+		private static final Map<String, String> mimetypes = new HashMap<>();
+		static {
+			try {
+				load(mimetypes);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
 	/** loads some file extension MIME types from default resource <i>/fr/techgp/nimbus/server/mimetypes.conf</i> */
 	public static final void loadDefaultMimeTypes() throws IOException {
 		synchronized (mimetypes) {
-			try (InputStream is = MimeTypes.class.getResourceAsStream("mimetypes.properties")) {
-				Properties p = new Properties();
-				p.load(is);
-				for (String extension : p.stringPropertyNames()) {
-					if (extension != null && !extension.isBlank()) {
-						String mimetype = p.getProperty(extension);
-						if (mimetype != null && !mimetype.isBlank())
-							mimetypes.put(extension.toLowerCase(), mimetype.toLowerCase());
-					}
+			load(mimetypes);
+		}
+	}
+
+	/** same as {@link MimeTypes#loadDefaultMimeTypes()} but defers loading to the first lookup, with lower priority than registered types */
+	public static final void loadDefaultMimeTypesLazily() {
+		lazyDefaults = true;
+	}
+
+	/** loads default resource in the specified map */
+	private static final void load(Map<String, String> map) throws IOException {
+		try (InputStream is = MimeTypes.class.getResourceAsStream("mimetypes.properties")) {
+			Properties p = new Properties();
+			p.load(is);
+			for (String extension : p.stringPropertyNames()) {
+				if (extension != null && !extension.isBlank()) {
+					String mimetype = p.getProperty(extension);
+					if (mimetype != null && !mimetype.isBlank())
+						map.put(extension.toLowerCase(), mimetype.toLowerCase());
 				}
 			}
 		}
@@ -112,6 +136,8 @@ public final class MimeTypes {
 			throw new InvalidParameterException("extension is required");
 		String e = extension.toLowerCase();
 		String r = mimetypes.get(e);
+		if (r == null && lazyDefaults)
+			r = LazyDefaults.mimetypes.get(e);
 		if (r == null && ! resolvers.isEmpty()) {
 			for (Function<String, String> resolver : resolvers) {
 				r = resolver.apply(e);
@@ -0,0 +1,17 @@
+package fr.techgp.nimbus.server;
+
+/**
+ * <p>This interface is implemented by the {@link Response} of servers able to encode constant headers once and reuse them,
+ * such as {@link fr.techgp.nimbus.server.impl.JettyServer}.</p>
+ *
+ * <p>The encoded header is opaque, and should only be given back to a response of the same class.</p>
+ */
+public interface PreEncodedHeaders {
+
+	/** returns the encoded form of the header "name" with "value", to use later with {@link PreEncodedHeaders#header(Object, boolean)} */
+	public Object encode(String name, String value);
+
+	/** sets the header encoded by {@link PreEncodedHeaders#encode(String, String)}, or adds it to existing values if "add" is true */
+	public void header(Object encoded, boolean add);
+
+}
@@ -3,19 +3,24 @@ package fr.techgp.nimbus.server;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.Type;
 import java.nio.charset.Charset;
+import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
 import java.util.function.Supplier;
-
-import javax.servlet.http.HttpServletResponse;
+import java.util.stream.Stream;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 
 import fr.techgp.nimbus.server.render.RenderBytes;
+import fr.techgp.nimbus.server.render.RenderConditional;
 import fr.techgp.nimbus.server.render.RenderFile;
+import fr.techgp.nimbus.server.render.RenderFrozen;
 import fr.techgp.nimbus.server.render.RenderJSON;
+import fr.techgp.nimbus.server.render.RenderJSONObject;
+import fr.techgp.nimbus.server.render.RenderJSONStream;
 import fr.techgp.nimbus.server.render.RenderRedirect;
 import fr.techgp.nimbus.server.render.RenderSamePage;
 import fr.techgp.nimbus.server.render.RenderStatic;
@@ -64,6 +69,17 @@ public interface Render {
 		public Render get() {
 			return this.render;
 		}
+
+		/** looks for a {@link Render.Exception} in the causes of "ex", as it may be wrapped (by the server while reading the body for instance) */
+		public static Exception find(Throwable ex) {
+			for (Throwable t = ex; t != null; t = t.getCause()) {
+				if (t instanceof Exception)
+					return (Exception) t;
+				if (t.getCause() == t)
+					break;
+			}
+			return null;
+		}
 	}
 
 	/** returns a new {@link Render} that will write this {@link String} */
@@ -111,49 +127,96 @@ public interface Render {
 		return new RenderThrowable(throwable);
 	}
 
+	/**
+	 * returns a {@link Render} replaying the response of "render", recorded once in UTF-8, with pre-encoded headers and body,
+	 * for constant responses that do not depend on the request
+	 *
+	 * @throws IllegalArgumentException if "render" uses the request, sets cookies or redirects
+	 */
+	public static Render freeze(Render render) {
+		return RenderFrozen.freeze(render);
+	}
+
 	/** returns a new {@link Render} that will send the specified status code, and optional "body" {@link String} */
 	public static Render status(int code, String body) {
 		return new RenderStatus(code, body);
 	}
 
+	/**
+	 * returns a new {@link Render} that will send a 304 response if the client's copy matches "etag" or "lastModified",
+	 * or the {@link Render} given by "body" otherwise, so that the body is built only when needed
+	 *
+	 * @param etag a version token, quoted if needed, or null
+	 * @param lastModified the modification date of the content, or -1
+	 * @param body the supplier of the full response
+	 */
+	public static Render conditional(String etag, long lastModified, Supplier<Render> body) {
+		return new RenderConditional(etag, lastModified, body);
+	}
+
 	/** wrapper for the 304 response with no body */
 	public static Render notModified() {
-		return new RenderStatus(HttpServletResponse.SC_NOT_MODIFIED, ""); // 304
+		return RenderFrozen.Statuses.NOT_MODIFIED; // 304
 	}
 
 	/** wrapper for the 400 response with "Bad Request" body */
 	public static Render badRequest() {
-		return new RenderStatus(HttpServletResponse.SC_BAD_REQUEST, "Bad Request"); // 400
+		return RenderFrozen.Statuses.BAD_REQUEST; // 400
 	}
 
 	/** wrapper for the 401 response with "Unauthorized" body */
 	public static Render unauthorized() {
-		return new RenderStatus(HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized"); // 401
+		return RenderFrozen.Statuses.UNAUTHORIZED; // 401
 	}
 
 	/** wrapper for the 403 response with "Forbidden" body */
 	public static Render forbidden() {
-		return new RenderStatus(HttpServletResponse.SC_FORBIDDEN, "Forbidden"); // 403
+		return RenderFrozen.Statuses.FORBIDDEN; // 403
 	}
 
 	/** wrapper for the 404 response with "Not Found" body */
 	public static Render notFound() {
-		return new RenderStatus(HttpServletResponse.SC_NOT_FOUND, "Not Found"); // 404
+		return RenderFrozen.Statuses.NOT_FOUND; // 404
 	}
 
 	/** wrapper for the 409 response with "Conflict" body */
 	public static Render conflict() {
-		return new RenderStatus(HttpServletResponse.SC_CONFLICT, "Conflict"); // 409
+		return RenderFrozen.Statuses.CONFLICT; // 409
+	}
+
+	/** wrapper for the 413 response with "Payload Too Large" body */
+	public static Render payloadTooLarge() {
+		return RenderFrozen.Statuses.PAYLOAD_TOO_LARGE; // 413
+	}
+
+	/** wrapper for the 429 response with "Too Many Requests" body */
+	public static Render tooManyRequests() {
+		return RenderFrozen.Statuses.TOO_MANY_REQUESTS; // https://tools.ietf.org/html/rfc6585#section-4
 	}
 
 	/** wrapper for the 500 response with "Internal Server Error" body */
 	public static Render internalServerError() {
-		return new RenderStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal Server Error"); // 500
+		return RenderFrozen.Statuses.INTERNAL_SERVER_ERROR; // 500
+	}
+
+	/** wrapper for the 502 response with "Bad Gateway" body */
+	public static Render badGateway() {
+		return RenderFrozen.Statuses.BAD_GATEWAY; // 502
+	}
+
+	/** wrapper for the 503 response with "Service Unavailable" body */
+	public static Render serviceUnavailable() {
+		return RenderFrozen.Statuses.SERVICE_UNAVAILABLE; // 503
+	}
+
+	/** wrapper for the 504 response with "Gateway Timeout" body */
+	public static Render gatewayTimeout() {
+		return RenderFrozen.Statuses.GATEWAY_TIMEOUT; // 504
 	}
 
 	/** wrapper for the 507 response with "Insufficient Storage" body */
 	public static Render insufficientStorage() {
-		return new RenderStatus(507, "Insufficient Storage"); // Détourné de WEBDAV : https://tools.ietf.org/html/rfc4918#section-11.5
+		return RenderFrozen.Statuses.INSUFFICIENT_STORAGE; // Détourné de WEBDAV : https://tools.ietf.org/html/rfc4918#section-11.5
 	}
 
 	/** returns a new {@link Render} that will use the specified {@link JsonElement} as the JSON response body */
@@ -161,9 +224,29 @@ public interface Render {
 		return new RenderJSON(object);
 	}
 
+	/** returns a new {@link Render} that will serialize "object" as the JSON response body, using the shared {@link RenderJSONObject#gson()} instance */
+	public static Render json(Object object) {
+		return new RenderJSONObject(object);
+	}
+
+	/** returns a new {@link Render} that will serialize "object" of the generic "type" (such as <code>List&lt;Item&gt;</code>) as the JSON response body */
+	public static Render json(Object object, Type type) {
+		return new RenderJSONObject(object, type);
+	}
+
 	/** returns a new {@link Render} that will transform the specified "objects" to a {@link JsonArray} as the JSON response body */
 	public static <T> Render json(List<T> objects, Function<T, JsonElement> transformer) {
 		return new RenderJSON(objects, transformer);
 	}
 
+	/** returns a new {@link Render} that will write the elements of "iterator" as a JSON array, one at a time, in a chunked response */
+	public static <T> Render json(Iterator<T> iterator, Function<T, JsonElement> transformer) {
+		return new RenderJSONStream<>(iterator, transformer);
+	}
+
+	/** returns a new {@link Render} that will write the elements of "stream" as a JSON array, one at a time, in a chunked response, and then close "stream" */
+	public static <T> Render json(Stream<T> stream, Function<T, JsonElement> transformer) {
+		return new RenderJSONStream<>(stream, transformer);
+	}
+
 }
@@ -87,6 +87,38 @@ public interface Request {
 	public int intHeader(String name);
 	/** returns the value of the specified request header as a long value that represents a Date object */
 	public long dateHeader(String name);
+	/** default implementation to check if "If-None-Match" matches the ETag, using the weak comparison, such as <code>"v1"</code>, <code>W/"v1"</code> or <code>*</code> */
+	default boolean ifNoneMatch(String etag) {
+		String header = header("If-None-Match");
+		if (header == null || etag == null)
+			return false;
+		String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+		for (String value : header.split(",")) {
+			value = value.trim();
+			if (value.startsWith("W/"))
+				value = value.substring(2);
+			if ("*".equals(value) || value.equals(opaque) || value.equals("\"" + opaque + "\""))
+				return true;
+		}
+		return false;
+	}
+	/** default implementation to check if the resource was modified after "If-Modified-Since", with a 1 s precision, true if the header is absent or invalid */
+	default boolean ifModifiedSince(long lastModified) {
+		try {
+			long ifModifiedSince = dateHeader("If-Modified-Since");
+			return ifModifiedSince == -1L || lastModified < 0 || lastModified / 1000 > ifModifiedSince / 1000;
+		} catch (IllegalArgumentException ex) {
+			return true;
+		}
+	}
+	/** default implementation to check if the client's copy is still valid, "If-Modified-Since" being ignored when "If-None-Match" is present (RFC 7232) */
+	default boolean notModified(String etag, long lastModified) {
+		if (!"GET".equals(method()) && !"HEAD".equals(method()))
+			return false;
+		if (header("If-None-Match") != null)
+			return ifNoneMatch(etag);
+		return header("If-Modified-Since") != null && !ifModifiedSince(lastModified);
+	}
 
 	/** returns the object bound with the specified name, or null if no object is bound under the name yet */
 	public <T> T attribute(String name);
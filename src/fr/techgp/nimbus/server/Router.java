@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import fr.techgp.nimbus.server.impl.JettyServer;
+import fr.techgp.nimbus.server.impl.ReverseProxy;
 
 /**
  * <p>This class plays a center role in the routing API :</p>
@@ -19,33 +20,54 @@ import fr.techgp.nimbus.server.impl.JettyServer;
  * <li><i>routes handlers</i> : they are executed in order, until one of them sets the response body</li>
  * <li><i>after filters</i> : they are all executed at the end, in a "finally" block</li>
  * </ul>
+ *
+ * <p>When a body is replaced by another one, the previous body is closed if it is {@link AutoCloseable}, as it will never be rendered.</p>
  */
 public class Router {
 
 	public static final String DEFAULT_CONTENT_TYPE = "text/html; charset=utf-8";
 
-	/** This class is a simple container for a {@link Route} and his associated {@link Matcher} */
+	/** This class is a simple container for a {@link Route} and his associated {@link Matcher}, with a name for diagnostic purpose */
 	private static final class RouteEntry {
+		public String name;
 		public Matcher matcher;
 		public Route route;
 	}
 
+	/** This class is a simple container for a request body size limit and his associated {@link Matcher} */
+	private static final class LimitEntry {
+		public Matcher matcher;
+		public long maxBodySize;
+	}
+
 	private List<RouteEntry> beforeFilters = new ArrayList<>();
 	private List<RouteEntry> routeHandlers = new ArrayList<>();
 	private List<RouteEntry> afterFilters = new ArrayList<>();
+	private List<LimitEntry> bodyLimits = new ArrayList<>();
 
 	/** handles a {@link Request} to prepare the {@link Response} using registered {@link Route} lists */
 	public void process(Request request, Response response) {
+		process(request, response, null);
+	}
+
+	/** handles a {@link Request} to prepare the {@link Response}, reporting phases and matching route to the optional {@link Trace} */
+	public void process(Request request, Response response, Trace trace) {
 		try {
 			// Process ALL before filters
-			processList(request, response, this.beforeFilters, true);
+			if (trace != null)
+				trace.enter(Trace.Phase.BEFORE);
+			processList(request, response, this.beforeFilters, true, trace);
 			try {
 				// Process routes if body is not set yet, and stop as soon as a body is set
+				if (trace != null)
+					trace.enter(Trace.Phase.HANDLER);
 				if (response.body() == null)
-					processList(request, response, this.routeHandlers, false);
+					processList(request, response, this.routeHandlers, false, trace);
 			} finally {
 				// Process ALL after filters
-				processList(request, response, this.afterFilters, true);
+				if (trace != null)
+					trace.enter(Trace.Phase.AFTER);
+				processList(request, response, this.afterFilters, true, trace);
 			}
 
 			// Reply 404 Not Found if no route matches request
@@ -59,24 +81,71 @@ public class Router {
 				response.type(DEFAULT_CONTENT_TYPE);
 
 		} catch (Exception ex) {
-			// Reply 500 for exceptions
-			response.body(Render.throwable(ex));
+			// Reply 500 for exceptions, unless caused by a Render.Exception (for instance when reading a body that is too large)
+			Render.Exception cause = Render.Exception.find(ex);
+			if (cause != null) {
+				if (response.type() == null)
+					response.type(DEFAULT_CONTENT_TYPE);
+				replaceBody(response, cause.get());
+			} else
+				replaceBody(response, Render.throwable(ex));
+		}
+	}
+
+	/** returns the maximum request body size for this {@link Request}, using the first matching limit, or -1 if no limit matches */
+	public long bodyLimit(Request request) {
+		for (LimitEntry entry : this.bodyLimits) {
+			if (entry.matcher.matches(request))
+				return entry.maxBodySize;
+		}
+		return -1;
+	}
+
+	/** returns the names of the <i>route handlers</i>, in order, such as "GET /path", "* /path" or "ROUTE #2" for custom {@link Matcher} */
+	public List<String> routeNames() {
+		List<String> names = new ArrayList<>(this.routeHandlers.size());
+		for (RouteEntry entry : this.routeHandlers) {
+			names.add(entry.name);
+		}
+		return names;
+	}
+
+	/** sets the response body, closing the previous one if it holds resources (such as a proxied response) and will never be rendered */
+	private static void replaceBody(Response response, Render body) {
+		Render previous = response.body();
+		if (previous != body && previous instanceof AutoCloseable) {
+			try {
+				((AutoCloseable) previous).close();
+			} catch (Exception ex) {
+				// Nothing more to do
+			}
 		}
+		response.body(body);
 	}
 
 	/** walks through the list of {@link RouteEntry} to find matching {@link Route} using {@link Matcher} */
-	private void processList(Request request, Response response, List<RouteEntry> entries, boolean processAll) throws Exception {
+	private void processList(Request request, Response response, List<RouteEntry> entries, boolean processAll, Trace trace) throws Exception {
 		for (RouteEntry entry : entries) {
 			if (entry.matcher.matches(request)) {
+				if (trace != null)
+					trace.current(entry.name);
 				try {
 					// Call the route
 					Render body = entry.route.handle(request, response);
 					// The route may return null or return a Render
-					if (body != null)
-						response.body(body);
+					if (body != null) {
+						replaceBody(response, body);
+						if (trace != null)
+							trace.route(entry.name);
+					}
 				} catch (Render.Exception ex) {
 					// The route can also throw an exception providing the Render
-					response.body(ex.get());
+					replaceBody(response, ex.get());
+					if (trace != null)
+						trace.route(entry.name);
+				} finally {
+					if (trace != null)
+						trace.current(null);
 				}
 				// Stop when the body is set, if asked to
 				if (response.body() != null && !processAll)
@@ -87,74 +156,96 @@ public class Router {
 
 	/** adds a <i>before filter</i> matching the specified "path" */
 	public Router before(String path, Route filter) {
-		return before(Matcher.Path.of(path), filter);
+		return add(this.beforeFilters, "BEFORE " + path, Matcher.Path.of(path), filter);
 	}
 
 	/** adds a <i>before filter</i> matching the specified "path" and specified HTTP "method" */
 	public Router before(String method, String path, Route filter) {
-		return before(Matcher.Method.is(method).and(Matcher.Path.of(path)), filter);
+		return add(this.beforeFilters, "BEFORE " + method + " " + path, Matcher.Method.is(method).and(Matcher.Path.of(path)), filter);
 	}
 
 	/** adds a <i>before filter</i> with a custom {@link Matcher} */
 	public Router before(Matcher matcher, Route filter) {
-		RouteEntry e = new RouteEntry();
-		e.matcher = matcher;
-		e.route = filter;
-		this.beforeFilters.add(e);
-		return this;
+		return add(this.beforeFilters, "BEFORE #" + this.beforeFilters.size(), matcher, filter);
 	}
 
 	/** adds a <i>route handler</i> matching the specified "path" */
 	public Router route(String path, Route route) {
-		return route(Matcher.Path.of(path), route);
+		return add(this.routeHandlers, "* " + path, Matcher.Path.of(path), route);
 	}
 
 	/** adds a <i>route handler</i> matching the specified "path" and specified HTTP "method" */
 	public Router route(String method, String path, Route route) {
-		return route(Matcher.Method.is(method).and(Matcher.Path.of(path)), route);
+		return add(this.routeHandlers, method + " " + path, Matcher.Method.is(method).and(Matcher.Path.of(path)), route);
 	}
 
 	/** adds a <i>route handler</i> with a custom {@link Matcher} */
 	public Router route(Matcher matcher, Route route) {
-		RouteEntry e = new RouteEntry();
-		e.matcher = matcher;
-		e.route = route;
-		this.routeHandlers.add(e);
-		return this;
+		return add(this.routeHandlers, "ROUTE #" + this.routeHandlers.size(), matcher, route);
+	}
+
+	/** adds a <i>route handler</i> forwarding requests whose path starts with "prefix" to "upstreamUrl", whatever the HTTP method */
+	public Router proxy(String prefix, String upstreamUrl) {
+		return proxy(new ReverseProxy(prefix, upstreamUrl));
+	}
+
+	/** adds a <i>route handler</i> forwarding requests to a custom {@link ReverseProxy} (with metrics or timeouts for instance) */
+	public Router proxy(ReverseProxy proxy) {
+		return add(this.routeHandlers, "PROXY " + proxy.getPrefix(), proxy::matches, proxy);
 	}
 
 	/** adds an <i>after filter</i> matching the specified "path" */
 	public Router after(String path, Route filter) {
-		return after(Matcher.Path.of(path), filter);
+		return add(this.afterFilters, "AFTER " + path, Matcher.Path.of(path), filter);
 	}
 
 	/** adds an <i>after filter</i> matching the specified "path" and specified HTTP "method" */
 	public Router after(String method, String path, Route filter) {
-		return after(Matcher.Method.is(method).and(Matcher.Path.of(path)), filter);
+		return add(this.afterFilters, "AFTER " + method + " " + path, Matcher.Method.is(method).and(Matcher.Path.of(path)), filter);
 	}
 
 	/** adds an <i>after filter</i> with a custom {@link Matcher} */
 	public Router after(Matcher matcher, Route filter) {
-		RouteEntry e = new RouteEntry();
+		return add(this.afterFilters, "AFTER #" + this.afterFilters.size(), matcher, filter);
+	}
+
+	/** limits the request body size, in bytes, for requests matching the specified "path" */
+	public Router limit(String path, long maxBodySize) {
+		return limit(Matcher.Path.of(path), maxBodySize);
+	}
+
+	/** limits the request body size, in bytes, for requests matching a custom {@link Matcher} */
+	public Router limit(Matcher matcher, long maxBodySize) {
+		LimitEntry e = new LimitEntry();
 		e.matcher = matcher;
-		e.route = filter;
-		this.afterFilters.add(e);
+		e.maxBodySize = maxBodySize;
+		this.bodyLimits.add(e);
 		return this;
 	}
 
 	/** adds a <i>route handler</i> matching the specified "path" and GET HTTP "method" */
 	public Router get(String path, Route route) {
-		return route(Matcher.Method.GET.and(Matcher.Path.of(path)), route);
+		return add(this.routeHandlers, "GET " + path, Matcher.Method.GET.and(Matcher.Path.of(path)), route);
 	}
 
 	/** adds a <i>route handler</i> matching the specified "path" and POST HTTP "method" */
 	public Router post(String path, Route route) {
-		return route(Matcher.Method.POST.and(Matcher.Path.of(path)), route);
+		return add(this.routeHandlers, "POST " + path, Matcher.Method.POST.and(Matcher.Path.of(path)), route);
 	}
 
 	/** adds a <i>route handler</i> that redirects from one path to another, whatever the HTTP method */
 	public Router redirect(String from, String to) {
-		return route(Matcher.Path.is(from), (req, resp) -> Render.redirect(to));
+		return add(this.routeHandlers, "* " + from, Matcher.Path.is(from), (req, resp) -> Render.redirect(to));
+	}
+
+	/** adds a {@link RouteEntry} to one of the lists */
+	private Router add(List<RouteEntry> entries, String name, Matcher matcher, Route route) {
+		RouteEntry e = new RouteEntry();
+		e.name = name;
+		e.matcher = matcher;
+		e.route = route;
+		entries.add(e);
+		return this;
 	}
 
 }
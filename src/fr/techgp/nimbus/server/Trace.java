@@ -0,0 +1,103 @@
+package fr.techgp.nimbus.server;
+
+/**
+ * <p>A {@link Trace} follows a {@link Request} while it is handled, for diagnostic purpose :</p>
+ * <ul>
+ * <li>the {@link Router} reports the current {@link Phase} and the name of the matching {@link Route}</li>
+ * <li>the server reports the {@link Phase#RENDER} phase and the end of the request</li>
+ * <li>the time spent in each {@link Phase} is accumulated</li>
+ * </ul>
+ *
+ * <p>A {@link Trace} is used by the thread handling the request, but "phase" and "route" can be read by other threads,
+ * for instance to tag stack samples or to detect slow requests.</p>
+ */
+public class Trace {
+
+	/** The successive phases of a request */
+	public static enum Phase {
+		BEFORE,
+		HANDLER,
+		AFTER,
+		RENDER,
+		DONE
+	}
+
+	private final String method;
+	private final String path;
+	private final Thread thread;
+	private final long start;
+	private final long[] durations = new long[Phase.values().length];
+	private volatile Phase phase = null;
+	private volatile String route = null;
+	private volatile String current = null;
+	private long phaseStart;
+
+	/** creates a new {@link Trace} for a request handled by the current thread, starting now */
+	public Trace(String method, String path) {
+		this.method = method;
+		this.path = path;
+		this.thread = Thread.currentThread();
+		this.start = System.nanoTime();
+		this.phaseStart = this.start;
+	}
+
+	/** returns the HTTP method of the request */
+	public String method() {
+		return this.method;
+	}
+
+	/** returns the path of the request */
+	public String path() {
+		return this.path;
+	}
+
+	/** returns the thread handling the request */
+	public Thread thread() {
+		return this.thread;
+	}
+
+	/** returns the start time, as given by {@link System#nanoTime()} */
+	public long start() {
+		return this.start;
+	}
+
+	/** returns the current phase, or null if not started yet */
+	public Phase phase() {
+		return this.phase;
+	}
+
+	/** ends the current phase and starts the specified phase */
+	public void enter(Phase phase) {
+		long now = System.nanoTime();
+		if (this.phase != null)
+			this.durations[this.phase.ordinal()] += now - this.phaseStart;
+		this.phaseStart = now;
+		this.phase = phase;
+	}
+
+	/** returns the time spent in the specified phase, in nanoseconds */
+	public long duration(Phase phase) {
+		return this.durations[phase.ordinal()];
+	}
+
+	/** returns the name of the {@link Route} currently executing, filter or handler, or null if none */
+	public String current() {
+		return this.current;
+	}
+
+	/** sets the name of the {@link Route} currently executing, filter or handler */
+	public void current(String current) {
+		this.current = current;
+	}
+
+	/** returns the name of the {@link Route} that provided the response body, or null if none */
+	public String route() {
+		return this.route;
+	}
+
+	/** sets the name of the {@link Route} that provided the response body */
+	public void route(String route) {
+		this.route = route;
+	}
+
+}
@@ -39,4 +39,33 @@ public final class Utils {
 		return request.header("Host");
 	}
 
+	/** returns true if the "Accept-Encoding" header of this {@link Request} accepts "encoding", explicitly or through "*", with a q-value above 0 */
+	public static final boolean acceptsEncoding(Request request, String encoding) {
+		String header = request.header("Accept-Encoding");
+		if (header == null)
+			return false;
+		boolean wildcard = false;
+		for (String coding : header.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim();
+			boolean accepted = true;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.startsWith("q=") || param.startsWith("Q=")) {
+					try {
+						accepted = Double.parseDouble(param.substring(2).trim()) > 0;
+					} catch (NumberFormatException ex) {
+						accepted = false;
+					}
+				}
+			}
+			// An explicit value wins over "*"
+			if (name.equalsIgnoreCase(encoding))
+				return accepted;
+			if (name.equals("*"))
+				wildcard = accepted;
+		}
+		return wildcard;
+	}
+
 }
@@ -0,0 +1,313 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>This class is an asynchronous access log, designed to keep request threads away from formatting and file I/O :</p>
+ * <ul>
+ * <li>request threads publish fixed-size records (timestamp, status, latency, bytes, method, path and IP) into a
+ * preallocated multi-producer ring buffer, without locking and without allocation</li>
+ * <li>a background thread formats the records and writes them in batches through a {@link FileChannel}</li>
+ * <li>the file is rotated when it reaches "maxFileSize", keeping at most "maxFiles" old files (file.1, file.2, ...)</li>
+ * <li>records are dropped (and counted) when the ring buffer is full, instead of blocking request threads</li>
+ * <li>I/O errors are counted, and reported to the application log at most once every {@link AccessLog#ERROR_REPORT_INTERVAL} ms</li>
+ * </ul>
+ *
+ * <p>Method, path and IP are stored as references to the {@link String} instances already created for the request.</p>
+ */
+public class AccessLog implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+	/** the minimum delay between two reports of I/O errors in the application log, in milliseconds */
+	public static final long ERROR_REPORT_INTERVAL = 60_000L;
+
+	/** The number of long values stored for each record : timestamp, status, latency and bytes */
+	private static final int FIELDS = 4;
+	/** The number of references stored for each record : method, path and IP */
+	private static final int REFERENCES = 3;
+	/** The format used for timestamps, consistent with the default application log */
+	private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+
+	private final File file;
+	private final long maxFileSize;
+	private final int maxFiles;
+	private final int capacity;
+	private final int mask;
+	/** The binary part of the records, FIELDS values per slot */
+	private final long[] values;
+	/** The references part of the records, REFERENCES references per slot */
+	private final Object[] references;
+	/** For each slot, the sequence of the published record + 1, used to detect when a claimed slot is ready */
+	private final AtomicLongArray published;
+	/** The next sequence to claim by producers */
+	private final AtomicLong claimed = new AtomicLong(0);
+	/** The next sequence to consume, only written by the background thread */
+	private volatile long consumed = 0;
+	/** The number of records dropped because the ring buffer was full */
+	private final LongAdder dropped = new LongAdder();
+	/** The number of I/O errors while writing the log file */
+	private final LongAdder errors = new LongAdder();
+
+	private volatile boolean running = false;
+	private Thread thread;
+	private FileChannel channel;
+	private long size;
+
+	/**
+	 * creates a new access log, that will be effective after a call to {@link AccessLog#start()}
+	 *
+	 * @param file the log file
+	 * @param capacity the number of records in the ring buffer, rounded up to a power of 2
+	 * @param maxFileSize the size triggering the rotation of the log file, or 0 to disable rotation
+	 * @param maxFiles the number of rotated files to keep
+	 */
+	public AccessLog(File file, int capacity, long maxFileSize, int maxFiles) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity should be positive");
+		int c = 1;
+		while (c < capacity)
+			c <<= 1;
+		this.file = file;
+		this.maxFileSize = maxFileSize;
+		this.maxFiles = maxFiles;
+		this.capacity = c;
+		this.mask = c - 1;
+		this.values = new long[c * FIELDS];
+		this.references = new Object[c * REFERENCES];
+		this.published = new AtomicLongArray(c);
+	}
+
+	/** returns the number of records in the ring buffer */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/** returns the number of records dropped since the start because the ring buffer was full */
+	public long getDropped() {
+		return this.dropped.sum();
+	}
+
+	/** returns the number of I/O errors since the start, each of them losing the current batch of records */
+	public long getErrors() {
+		return this.errors.sum();
+	}
+
+	/** opens the log file and starts the background thread */
+	public synchronized void start() throws IOException {
+		if (this.running)
+			return;
+		this.open();
+		this.running = true;
+		this.thread = new Thread(this::consume, "nimbus-access-log");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/** stops the background thread, after writing pending records, then closes the log file */
+	@Override
+	public synchronized void close() throws IOException {
+		if (!this.running)
+			return;
+		this.running = false;
+		LockSupport.unpark(this.thread);
+		try {
+			this.thread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		this.thread = null;
+		this.channel.close();
+		this.channel = null;
+	}
+
+	/**
+	 * publishes a record in the ring buffer. This method never blocks and returns false if the record is dropped.
+	 *
+	 * @param timestamp the time when the request was received, in milliseconds
+	 * @param status the status code of the response
+	 * @param latency the time spent handling the request, in nanoseconds
+	 * @param bytes the number of bytes written in the response
+	 * @param method the HTTP method of the request
+	 * @param path the path of the request
+	 * @param ip the client address
+	 * @return true if the record was published, false if it was dropped because the ring buffer is full
+	 */
+	public boolean log(long timestamp, int status, long latency, long bytes, String method, String path, String ip) {
+		// Claim a sequence, unless the consumer is too far behind
+		long sequence;
+		do {
+			sequence = this.claimed.get();
+			if (sequence - this.consumed >= this.capacity) {
+				this.dropped.increment();
+				return false;
+			}
+		} while (!this.claimed.compareAndSet(sequence, sequence + 1));
+
+		// Fill the claimed slot
+		int slot = (int) (sequence & this.mask);
+		int v = slot * FIELDS;
+		this.values[v] = timestamp;
+		this.values[v + 1] = status;
+		this.values[v + 2] = latency;
+		this.values[v + 3] = bytes;
+		int r = slot * REFERENCES;
+		this.references[r] = method;
+		this.references[r + 1] = path;
+		this.references[r + 2] = ip;
+
+		// Publish the slot (ordered write, after the record content)
+		this.published.lazySet(slot, sequence + 1);
+		return true;
+	}
+
+	/** the loop executed by the background thread */
+	private void consume() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+		StringBuilder line = new StringBuilder(256);
+		long lastSecond = -1;
+		String lastDate = null;
+		long reportedDrops = 0;
+		long reportedErrors = 0;
+		long lastErrorReport = 0;
+		while (true) {
+			boolean stopping = !this.running;
+			long next = this.consumed;
+			int count = 0;
+			try {
+				// Format every published record
+				while (this.published.get((int) (next & this.mask)) == next + 1) {
+					int slot = (int) (next & this.mask);
+					int v = slot * FIELDS;
+					int r = slot * REFERENCES;
+					long second = this.values[v] / 1000;
+					if (second != lastSecond) {
+						lastSecond = second;
+						lastDate = FORMATTER.format(Instant.ofEpochSecond(second));
+					}
+					line.setLength(0);
+					line.append(this.references[r + 2]).append(" [").append(lastDate).append("] \"")
+						.append(this.references[r]).append(' ').append(this.references[r + 1]).append("\" ")
+						.append(this.values[v + 1]).append(' ')
+						.append(this.values[v + 3]).append(' ')
+						.append(this.values[v + 2] / 1000).append("us\n");
+					// Release the references and then the slot itself, once the record has been read
+					this.references[r] = null;
+					this.references[r + 1] = null;
+					this.references[r + 2] = null;
+					next++;
+					this.consumed = next;
+					count++;
+					this.append(line, buffer, encoder);
+				}
+
+				// Keep track of dropped records in the log itself
+				long drops = this.dropped.sum();
+				if (drops != reportedDrops) {
+					line.setLength(0);
+					line.append("[access log] ").append(drops - reportedDrops).append(" record(s) dropped\n");
+					this.append(line, buffer, encoder);
+					reportedDrops = drops;
+				}
+
+				// Write the batch
+				this.flush(buffer);
+			} catch (IOException ex) {
+				// The batch is lost, but the loop goes on, reporting errors without flooding the application log
+				this.errors.increment();
+				buffer.clear();
+				long now = System.currentTimeMillis();
+				if (now - lastErrorReport >= ERROR_REPORT_INTERVAL) {
+					long errors = this.errors.sum();
+					if (logger.isErrorEnabled())
+						logger.error("Access log " + this.file + " failed " + (errors - reportedErrors) + " time(s)", ex);
+					reportedErrors = errors;
+					lastErrorReport = now;
+				}
+				// The file may have been closed by a failed rotation
+				if (!this.channel.isOpen()) {
+					try {
+						this.open();
+					} catch (IOException ex2) {
+						// Tried again on the next error
+					}
+				}
+			}
+
+			if (count == 0) {
+				if (stopping)
+					break;
+				LockSupport.parkNanos(this, 10_000_000L);
+			}
+		}
+	}
+
+	/** encodes a line into the buffer, writing the buffer to the file each time it is full, and rotating the file between lines */
+	private void append(CharSequence line, ByteBuffer buffer, CharsetEncoder encoder) throws IOException {
+		CharBuffer chars = CharBuffer.wrap(line);
+		encoder.reset();
+		while (encoder.encode(chars, buffer, true) == CoderResult.OVERFLOW) {
+			this.flush(buffer);
+		}
+		if (this.maxFileSize > 0 && this.size + buffer.position() >= this.maxFileSize) {
+			this.flush(buffer);
+			this.rotate();
+		}
+	}
+
+	/** writes the buffer content to the file */
+	private void flush(ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			this.size += this.channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/** renames "file" to "file.1", "file.1" to "file.2" and so on, and then opens a new "file" */
+	private void rotate() throws IOException {
+		this.channel.close();
+		try {
+			if (this.maxFiles <= 0) {
+				Files.deleteIfExists(this.file.toPath());
+			} else {
+				for (int i = this.maxFiles - 1; i >= 0; i--) {
+					File source = (i == 0) ? this.file : new File(this.file.getPath() + "." + i);
+					if (source.exists())
+						Files.move(source.toPath(), new File(this.file.getPath() + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		} finally {
+			this.open();
+		}
+	}
+
+	/** opens the log file in "append" mode */
+	private void open() throws IOException {
+		this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.size = this.channel.size();
+	}
+
+}
@@ -0,0 +1,140 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.techgp.nimbus.server.Matcher;
+import fr.techgp.nimbus.server.Request;
+
+/**
+ * <p>This class is an adaptive concurrency limiter, using an AIMD (additive increase, multiplicative decrease) algorithm
+ * on the observed latency :</p>
+ * <ul>
+ * <li>a request is accepted only if the number of requests in flight is below the current limit</li>
+ * <li>each time a request completes under "targetLatency" while the limit is in use, the limit slowly increases
+ * (+1 every "limit" requests)</li>
+ * <li>each time a request completes over "targetLatency", the limit is multiplied by "backoff", at most once per
+ * "targetLatency" period so that a burst of slow requests does not collapse the limit</li>
+ * <li>the limit always stays between "minLimit" and "maxLimit"</li>
+ * </ul>
+ *
+ * <p>Requests matching an exempt {@link Matcher} (health checks for instance) are never limited nor measured.</p>
+ */
+public class ConcurrencyLimiter {
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long targetLatency;
+	private final double backoff;
+	private final int retryAfter;
+	private volatile Matcher[] exempts = new Matcher[0];
+
+	/** The number of requests currently being processed */
+	private final AtomicInteger inflight = new AtomicInteger(0);
+	/** The current limit, adapted to the observed latency */
+	private final AtomicInteger limit;
+	/** The number of fast requests since the last increase of the limit */
+	private final AtomicInteger successes = new AtomicInteger(0);
+	/** The time of the last decrease of the limit, in nanoseconds */
+	private final AtomicLong lastDecrease;
+	/** The number of requests rejected since the start */
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * creates a new concurrency limiter
+	 *
+	 * @param initialLimit the limit used when the server starts
+	 * @param minLimit the lowest limit, whatever the latency
+	 * @param maxLimit the highest limit, whatever the latency
+	 * @param targetLatency the latency above which the limit decreases, in milliseconds
+	 * @param backoff the factor applied to the limit when the latency is too high, between 0 and 1 (0.9 for instance)
+	 * @param retryAfter the delay suggested to rejected clients, in seconds, using the "Retry-After" header
+	 */
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long targetLatency, double backoff, int retryAfter) {
+		if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit)
+			throw new IllegalArgumentException("limits should verify 1 <= minLimit <= initialLimit <= maxLimit");
+		if (backoff <= 0 || backoff >= 1)
+			throw new IllegalArgumentException("backoff should be between 0 and 1");
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.targetLatency = targetLatency * 1_000_000L;
+		this.backoff = backoff;
+		this.retryAfter = retryAfter;
+		this.limit = new AtomicInteger(initialLimit);
+		this.lastDecrease = new AtomicLong(System.nanoTime() - this.targetLatency);
+	}
+
+	/** then excludes requests matching this {@link Matcher} from limitation */
+	public ConcurrencyLimiter exempt(Matcher matcher) {
+		Matcher[] array = new Matcher[this.exempts.length + 1];
+		System.arraycopy(this.exempts, 0, array, 0, this.exempts.length);
+		array[this.exempts.length] = matcher;
+		this.exempts = array;
+		return this;
+	}
+
+	/** returns true if the request is excluded from limitation */
+	public boolean isExempt(Request request) {
+		for (Matcher matcher : this.exempts) {
+			if (matcher.matches(request))
+				return true;
+		}
+		return false;
+	}
+
+	/** returns the current limit */
+	public int getLimit() {
+		return this.limit.get();
+	}
+
+	/** returns the number of requests currently being processed */
+	public int getInflight() {
+		return this.inflight.get();
+	}
+
+	/** returns the number of requests rejected since the start */
+	public long getRejected() {
+		return this.rejected.sum();
+	}
+
+	/** returns the delay suggested to rejected clients, in seconds */
+	public int getRetryAfter() {
+		return this.retryAfter;
+	}
+
+	/** tries to start processing a request, returning false if the limit is reached. When true is returned, {@link ConcurrencyLimiter#release(long)} must be called. */
+	public boolean acquire() {
+		int current;
+		do {
+			current = this.inflight.get();
+			if (current >= this.limit.get()) {
+				this.rejected.increment();
+				return false;
+			}
+		} while (!this.inflight.compareAndSet(current, current + 1));
+		return true;
+	}
+
+	/** ends processing a request, once it's response is rendered, adapting the limit to the observed "latency" in nanoseconds */
+	public void release(long latency) {
+		int current = this.inflight.getAndDecrement();
+		int l = this.limit.get();
+		if (latency > this.targetLatency) {
+			// Multiplicative decrease, once per period
+			long now = System.nanoTime();
+			long last = this.lastDecrease.get();
+			if (now - last >= this.targetLatency && this.lastDecrease.compareAndSet(last, now)) {
+				this.limit.set(Math.max(this.minLimit, (int) (l * this.backoff)));
+				this.successes.set(0);
+			}
+		} else if (2 * current >= l && l < this.maxLimit) {
+			// Additive increase, when at least half of the limit is in use
+			if (this.successes.incrementAndGet() >= l) {
+				this.successes.set(0);
+				this.limit.compareAndSet(l, l + 1);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.http.BadMessageException;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.server.ConnectionLimit;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.LowResourceMonitor;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+/**
+ * <p>This class configures the connection-level protections offered by Jetty, so that slow or idle clients can not
+ * exhaust the connectors :</p>
+ * <ul>
+ * <li>"maxConnections" limits the number of open connections, Jetty stops accepting new connections when reached</li>
+ * <li>"lowResourcesIdleTimeout" is the idle timeout applied to connections when the server is low on threads (or on
+ * memory if "maxMemory" is set), so that idle connections are closed faster under pressure</li>
+ * <li>"minRequestDataRate" and "minResponseDataRate" are the minimum data rates, in bytes per second, below which
+ * Jetty aborts the transfer, to drop slowloris-style clients</li>
+ * </ul>
+ *
+ * <p>Each protection is disabled when the corresponding value is 0, and each kind of rejection is counted.</p>
+ *
+ * @see https://www.eclipse.org/jetty/documentation/jetty-9/index.html#limit-load
+ * @see https://www.eclipse.org/jetty/documentation/jetty-9/index.html#lowresourcemonitor
+ */
+public class ConnectionProtection {
+
+	private final int maxConnections;
+	private final int lowResourcesIdleTimeout;
+	private final long maxMemory;
+	private final long minRequestDataRate;
+	private final long minResponseDataRate;
+
+	/** The number of open connections */
+	private final LongAdder connections = new LongAdder();
+	/** The number of times the connection limit was reached */
+	private final LongAdder connectionLimitReached = new LongAdder();
+	/** The number of times the server went into low-resources mode */
+	private final LongAdder lowResources = new LongAdder();
+	/** The number of requests aborted because the client was sending data too slowly */
+	private final LongAdder requestDataRateViolations = new LongAdder();
+	/** The number of responses aborted because the client was reading data too slowly */
+	private final LongAdder responseDataRateViolations = new LongAdder();
+
+	/**
+	 * creates a new connection protection configuration
+	 *
+	 * @param maxConnections the maximum number of open connections, or 0 to disable the limit
+	 * @param lowResourcesIdleTimeout the idle timeout applied in low-resources mode, in milliseconds, or 0 to disable the monitor
+	 * @param maxMemory the memory usage triggering low-resources mode, in bytes, or 0 to only monitor threads
+	 * @param minRequestDataRate the minimum rate when reading request content, in bytes per second, or 0 to disable
+	 * @param minResponseDataRate the minimum rate when writing response content, in bytes per second, or 0 to disable
+	 */
+	public ConnectionProtection(int maxConnections, int lowResourcesIdleTimeout, long maxMemory, long minRequestDataRate, long minResponseDataRate) {
+		this.maxConnections = maxConnections;
+		this.lowResourcesIdleTimeout = lowResourcesIdleTimeout;
+		this.maxMemory = maxMemory;
+		this.minRequestDataRate = minRequestDataRate;
+		this.minResponseDataRate = minResponseDataRate;
+	}
+
+	/** returns the number of open connections */
+	public long getConnections() {
+		return this.connections.sum();
+	}
+
+	/** returns the number of times the connection limit was reached */
+	public long getConnectionLimitReached() {
+		return this.connectionLimitReached.sum();
+	}
+
+	/** returns the number of times the server went into low-resources mode */
+	public long getLowResources() {
+		return this.lowResources.sum();
+	}
+
+	/** returns the number of requests aborted because the client was sending data too slowly */
+	public long getRequestDataRateViolations() {
+		return this.requestDataRateViolations.sum();
+	}
+
+	/** returns the number of responses aborted because the client was reading data too slowly */
+	public long getResponseDataRateViolations() {
+		return this.responseDataRateViolations.sum();
+	}
+
+	/** installs the protections on the server and it's connector, before the server is started */
+	public void install(Server server, ServerConnector connector) {
+		// Minimum data rates
+		HttpConfiguration configuration = connector.getConnectionFactory(HttpConnectionFactory.class).getHttpConfiguration();
+		if (this.minRequestDataRate > 0)
+			configuration.setMinRequestDataRate(this.minRequestDataRate);
+		if (this.minResponseDataRate > 0)
+			configuration.setMinResponseDataRate(this.minResponseDataRate);
+
+		// Maximum number of connections
+		if (this.maxConnections > 0) {
+			server.addBean(new ConnectionLimit(this.maxConnections, server) {
+				@Override
+				protected void limit() {
+					ConnectionProtection.this.connectionLimitReached.increment();
+					super.limit();
+				}
+			});
+		}
+
+		// Shorter idle timeout when low on resources
+		if (this.lowResourcesIdleTimeout > 0) {
+			LowResourceMonitor monitor = new LowResourceMonitor(server) {
+				@Override
+				protected void setLowResources() {
+					// Only called on the transition to low-resources mode (since Jetty 9.4.42, "isLowOnResources()" is already true here)
+					ConnectionProtection.this.lowResources.increment();
+					super.setLowResources();
+				}
+			};
+			monitor.setPeriod(1000);
+			monitor.setLowResourcesIdleTimeout(this.lowResourcesIdleTimeout);
+			monitor.setMonitorThreads(true);
+			if (this.maxMemory > 0)
+				monitor.setMaxMemory(this.maxMemory);
+			server.addBean(monitor);
+		}
+
+		// Counters, using beans of the connector that Jetty notifies for each connection and for each request
+		connector.addBean(new Listener());
+	}
+
+	/** This listener counts open connections and data rate violations */
+	private final class Listener implements Connection.Listener, HttpChannel.Listener {
+
+		@Override
+		public void onOpened(Connection connection) {
+			ConnectionProtection.this.connections.increment();
+		}
+
+		@Override
+		public void onClosed(Connection connection) {
+			ConnectionProtection.this.connections.decrement();
+		}
+
+		@Override
+		public void onRequestFailure(Request request, Throwable failure) {
+			if (isDataRateViolation(failure))
+				ConnectionProtection.this.requestDataRateViolations.increment();
+		}
+
+		@Override
+		public void onResponseFailure(Request request, Throwable failure) {
+			if (isDataRateViolation(failure))
+				ConnectionProtection.this.responseDataRateViolations.increment();
+		}
+
+		/**
+		 * Jetty 9.4 (9.4.42 and later 9.4 releases, as required by the pom) reports data rate violations, in HttpInput and HttpOutput,
+		 * as a {@link BadMessageException} with a "408 Request Timeout" code, possibly wrapped by the channel
+		 */
+		private boolean isDataRateViolation(Throwable failure) {
+			for (Throwable t = failure; t != null; t = t.getCause()) {
+				if (t instanceof BadMessageException && ((BadMessageException) t).getCode() == HttpStatus.REQUEST_TIMEOUT_408)
+					return true;
+			}
+			return false;
+		}
+	}
+
+}
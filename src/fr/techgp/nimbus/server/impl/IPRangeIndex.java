@@ -0,0 +1,427 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * <p>This class is an immutable index of IP address ranges, designed for fast lookups :</p>
+ * <ul>
+ * <li>IPv4 ranges are stored as sorted "start" and "end" primitive arrays</li>
+ * <li>IPv6 ranges are stored the same way, each address being split in "high" and "low" 64-bit parts, compared as unsigned values</li>
+ * <li>overlapping and adjacent ranges are merged when the index is built</li>
+ * <li>lookups use a binary search and hand-written address parsers, without allocation</li>
+ * </ul>
+ *
+ * <p>As instances are immutable, an updated index can be built in the background and then published by a simple
+ * volatile write.</p>
+ *
+ * <p>Supported line formats are "description:start-end" (P2P format used by iblocklist.com), "start-end", "address/prefix"
+ * (CIDR notation) and "address". Empty lines and comments starting with "#" or "//" are ignored.</p>
+ */
+public final class IPRangeIndex {
+
+	/** an empty index, matching no address */
+	public static final IPRangeIndex EMPTY = new Builder().build();
+
+	private final long[] starts4;
+	private final long[] ends4;
+	private final long[] startsHigh6;
+	private final long[] startsLow6;
+	private final long[] endsHigh6;
+	private final long[] endsLow6;
+
+	private IPRangeIndex(long[] starts4, long[] ends4, long[] startsHigh6, long[] startsLow6, long[] endsHigh6, long[] endsLow6) {
+		this.starts4 = starts4;
+		this.ends4 = ends4;
+		this.startsHigh6 = startsHigh6;
+		this.startsLow6 = startsLow6;
+		this.endsHigh6 = endsHigh6;
+		this.endsLow6 = endsLow6;
+	}
+
+	/** returns the number of IPv4 ranges, after merge */
+	public int sizeIPv4() {
+		return this.starts4.length;
+	}
+
+	/** returns the number of IPv6 ranges, after merge */
+	public int sizeIPv6() {
+		return this.startsHigh6.length;
+	}
+
+	/** returns true if "ip" is an IPv4 or IPv6 address included in one of the ranges, false otherwise or if "ip" is not a valid address */
+	public boolean contains(String ip) {
+		if (ip == null)
+			return false;
+		long ipv4 = parseIPv4(ip, 0, ip.length());
+		if (ipv4 >= 0)
+			return containsIPv4(ipv4);
+		if (ip.indexOf(':') == -1)
+			return false;
+		try {
+			long high = parseIPv6(ip, true);
+			long low = parseIPv6(ip, false);
+			// IPv4-mapped IPv6 address (::ffff:a.b.c.d)
+			if (high == 0 && (low >>> 32) == 0xffffL)
+				return containsIPv4(low & 0xffffffffL);
+			return containsIPv6(high, low);
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+	}
+
+	/** returns true if the IPv4 address, as an unsigned 32-bit value, is included in one of the ranges */
+	public boolean containsIPv4(long ip) {
+		// Find the last range starting before (or at) "ip"
+		int low = 0;
+		int high = this.starts4.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (this.starts4[middle] <= ip)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return high >= 0 && ip <= this.ends4[high];
+	}
+
+	/** returns true if the IPv6 address, as two unsigned 64-bit values, is included in one of the ranges */
+	public boolean containsIPv6(long ipHigh, long ipLow) {
+		// Find the last range starting before (or at) "ip"
+		int low = 0;
+		int high = this.startsHigh6.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (compare(this.startsHigh6[middle], this.startsLow6[middle], ipHigh, ipLow) <= 0)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return high >= 0 && compare(ipHigh, ipLow, this.endsHigh6[high], this.endsLow6[high]) <= 0;
+	}
+
+	/** builds an index by reading all lines from "reader" */
+	public static IPRangeIndex load(Reader reader) throws IOException {
+		Builder builder = new Builder();
+		BufferedReader br = (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(reader);
+		String line;
+		while ((line = br.readLine()) != null) {
+			builder.addLine(line);
+		}
+		return builder.build();
+	}
+
+	/** compares two 128-bit unsigned values */
+	private static int compare(long high1, long low1, long high2, long low2) {
+		int c = Long.compareUnsigned(high1, high2);
+		return c != 0 ? c : Long.compareUnsigned(low1, low2);
+	}
+
+	/** parses the IPv4 address between "from" and "to" as an unsigned 32-bit value, returning -1 if it is not a valid IPv4 address */
+	public static long parseIPv4(CharSequence s, int from, int to) {
+		long result = 0;
+		int value = -1;
+		int dots = 0;
+		for (int i = from; i < to; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				value = (value == -1 ? 0 : value * 10) + (c - '0');
+				if (value > 255)
+					return -1;
+			} else if (c == '.' && value != -1 && dots < 3) {
+				result = (result << 8) | value;
+				value = -1;
+				dots++;
+			} else {
+				return -1;
+			}
+		}
+		if (dots != 3 || value == -1)
+			return -1;
+		return (result << 8) | value;
+	}
+
+	/**
+	 * parses an IPv6 address, optionally between brackets and with a zone index, and returns the high or low 64-bit part.
+	 *
+	 * @throws IllegalArgumentException if "s" is not a valid IPv6 address
+	 */
+	public static long parseIPv6(CharSequence s, boolean high) {
+		int from = 0;
+		int to = s.length();
+		if (to > 1 && s.charAt(0) == '[' && s.charAt(to - 1) == ']') {
+			from++;
+			to--;
+		}
+		for (int i = from; i < to; i++) {
+			if (s.charAt(i) == '%') {
+				to = i;
+				break;
+			}
+		}
+		if (to - from < 2)
+			throw new IllegalArgumentException("Invalid IPv6 address");
+
+		// Groups before "::" are shifted into "head", groups after "::" into "tail"
+		long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+		int headCount = 0, tailCount = 0;
+		boolean compressed = false;
+		int i = from;
+		if (s.charAt(i) == ':') {
+			if (s.charAt(i + 1) != ':')
+				throw new IllegalArgumentException("Invalid IPv6 address");
+			compressed = true;
+			i += 2;
+		}
+		while (i < to) {
+			// Read a group of up to 4 hexadecimal digits
+			int start = i;
+			int value = 0;
+			while (i < to && i - start < 5) {
+				int digit = Character.digit(s.charAt(i), 16);
+				if (digit == -1)
+					break;
+				value = (value << 4) | digit;
+				i++;
+			}
+			int groups;
+			long groupsValue;
+			if (i < to && s.charAt(i) == '.') {
+				// Embedded IPv4 address, counting for 2 groups, at the end
+				long ipv4 = parseIPv4(s, start, to);
+				if (ipv4 < 0)
+					throw new IllegalArgumentException("Invalid IPv6 address");
+				groups = 2;
+				groupsValue = ipv4;
+				i = to;
+			} else {
+				if (i == start || i - start > 4)
+					throw new IllegalArgumentException("Invalid IPv6 address");
+				groups = 1;
+				groupsValue = value;
+			}
+			if (compressed) {
+				tailHigh = (tailHigh << (16 * groups)) | (tailLow >>> (64 - 16 * groups));
+				tailLow = (tailLow << (16 * groups)) | groupsValue;
+				tailCount += groups;
+			} else {
+				headHigh = (headHigh << (16 * groups)) | (headLow >>> (64 - 16 * groups));
+				headLow = (headLow << (16 * groups)) | groupsValue;
+				headCount += groups;
+			}
+			if (headCount + tailCount > 8)
+				throw new IllegalArgumentException("Invalid IPv6 address");
+			// Read the separator
+			if (i < to) {
+				if (s.charAt(i) != ':' || i + 1 == to)
+					throw new IllegalArgumentException("Invalid IPv6 address");
+				i++;
+				if (s.charAt(i) == ':') {
+					if (compressed)
+						throw new IllegalArgumentException("Invalid IPv6 address");
+					compressed = true;
+					i++;
+				}
+			}
+		}
+		if (compressed ? (headCount + tailCount > 7) : (headCount != 8))
+			throw new IllegalArgumentException("Invalid IPv6 address");
+
+		// Result is "head" shifted left by the number of missing groups, combined with "tail"
+		int shift = 16 * (8 - headCount);
+		long resultHigh, resultLow;
+		if (shift == 0) {
+			resultHigh = headHigh;
+			resultLow = headLow;
+		} else if (shift >= 64) {
+			resultHigh = (shift == 128) ? 0 : headLow << (shift - 64);
+			resultLow = 0;
+		} else {
+			resultHigh = (headHigh << shift) | (headLow >>> (64 - shift));
+			resultLow = headLow << shift;
+		}
+		return high ? (resultHigh | tailHigh) : (resultLow | tailLow);
+	}
+
+	/** This class collects ranges and then builds an immutable {@link IPRangeIndex} with sorted and merged ranges */
+	public static final class Builder {
+
+		/** IPv4 ranges, packed as "start << 32 | end" with the sign bit flipped, so that sorting the array sorts ranges by start */
+		private long[] ranges4 = new long[1024];
+		private int count4 = 0;
+		/** IPv6 ranges, 4 values per range : startHigh, startLow, endHigh, endLow */
+		private long[] ranges6 = new long[64];
+		private int count6 = 0;
+
+		/** adds an IPv4 range, using unsigned 32-bit values */
+		public Builder addIPv4(long start, long end) {
+			if (start > end)
+				return addIPv4(end, start);
+			if (this.count4 == this.ranges4.length)
+				this.ranges4 = Arrays.copyOf(this.ranges4, this.count4 * 2);
+			this.ranges4[this.count4++] = ((start << 32) | end) ^ Long.MIN_VALUE;
+			return this;
+		}
+
+		/** adds an IPv6 range, using unsigned 64-bit values */
+		public Builder addIPv6(long startHigh, long startLow, long endHigh, long endLow) {
+			if (compare(startHigh, startLow, endHigh, endLow) > 0)
+				return addIPv6(endHigh, endLow, startHigh, startLow);
+			if (this.count6 * 4 == this.ranges6.length)
+				this.ranges6 = Arrays.copyOf(this.ranges6, this.ranges6.length * 2);
+			int i = this.count6++ * 4;
+			this.ranges6[i] = startHigh;
+			this.ranges6[i + 1] = startLow;
+			this.ranges6[i + 2] = endHigh;
+			this.ranges6[i + 3] = endLow;
+			return this;
+		}
+
+		/** parses a line of a block list and adds the corresponding range, returning false if the line was ignored */
+		public boolean addLine(String line) {
+			String s = line.trim();
+			if (s.isEmpty() || s.startsWith("#") || s.startsWith("//"))
+				return false;
+			try {
+				int dash = s.lastIndexOf('-');
+				if (dash != -1) {
+					String end = s.substring(dash + 1).trim();
+					String start = s.substring(0, dash).trim();
+					long end4 = parseIPv4(end, 0, end.length());
+					if (end4 >= 0) {
+						// "description:a.b.c.d-e.f.g.h" or "a.b.c.d-e.f.g.h"
+						start = start.substring(start.lastIndexOf(':') + 1).trim();
+						long start4 = parseIPv4(start, 0, start.length());
+						if (start4 < 0)
+							return false;
+						addIPv4(start4, end4);
+						return true;
+					}
+					// "description:x::y-x::z" or "x::y-x::z", the description being removed until start is a valid address
+					long endHigh = parseIPv6(end, true);
+					long endLow = parseIPv6(end, false);
+					int colon = -1;
+					while (true) {
+						String candidate = start.substring(colon + 1);
+						if (isIPv6(candidate)) {
+							addIPv6(parseIPv6(candidate, true), parseIPv6(candidate, false), endHigh, endLow);
+							return true;
+						}
+						colon = start.indexOf(':', colon + 1);
+						if (colon == -1)
+							return false;
+					}
+				}
+				int slash = s.indexOf('/');
+				String address = slash == -1 ? s : s.substring(0, slash);
+				long ipv4 = parseIPv4(address, 0, address.length());
+				if (ipv4 >= 0) {
+					// "a.b.c.d" or "a.b.c.d/n"
+					int prefix = slash == -1 ? 32 : Integer.parseInt(s.substring(slash + 1));
+					if (prefix < 0 || prefix > 32)
+						return false;
+					long mask = prefix == 0 ? 0 : (0xffffffffL << (32 - prefix)) & 0xffffffffL;
+					addIPv4(ipv4 & mask, (ipv4 & mask) | (~mask & 0xffffffffL));
+					return true;
+				}
+				// "x::y" or "x::y/n"
+				long high = parseIPv6(address, true);
+				long low = parseIPv6(address, false);
+				int prefix = slash == -1 ? 128 : Integer.parseInt(s.substring(slash + 1));
+				if (prefix < 0 || prefix > 128)
+					return false;
+				long maskHigh = prefix >= 64 ? -1L : (prefix == 0 ? 0 : -1L << (64 - prefix));
+				long maskLow = prefix <= 64 ? 0 : (prefix == 128 ? -1L : -1L << (128 - prefix));
+				addIPv6(high & maskHigh, low & maskLow, (high & maskHigh) | ~maskHigh, (low & maskLow) | ~maskLow);
+				return true;
+			} catch (IllegalArgumentException ex) {
+				// Invalid address or prefix
+				return false;
+			}
+		}
+
+		/** returns true if "s" only contains characters used by IPv6 addresses and can be parsed as such */
+		private static boolean isIPv6(String s) {
+			if (s.isEmpty())
+				return false;
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c != ':' && c != '.' && Character.digit(c, 16) == -1)
+					return false;
+			}
+			try {
+				parseIPv6(s, true);
+				return true;
+			} catch (IllegalArgumentException ex) {
+				return false;
+			}
+		}
+
+		/** sorts and merges ranges to build the immutable {@link IPRangeIndex} */
+		public IPRangeIndex build() {
+			// IPv4 : sort packed ranges and merge overlapping or adjacent ones
+			long[] sorted4 = Arrays.copyOf(this.ranges4, this.count4);
+			Arrays.sort(sorted4);
+			long[] starts4 = new long[sorted4.length];
+			long[] ends4 = new long[sorted4.length];
+			int n4 = 0;
+			for (long packed : sorted4) {
+				long range = packed ^ Long.MIN_VALUE;
+				long start = range >>> 32;
+				long end = range & 0xffffffffL;
+				if (n4 > 0 && start <= ends4[n4 - 1] + 1)
+					ends4[n4 - 1] = Math.max(ends4[n4 - 1], end);
+				else {
+					starts4[n4] = start;
+					ends4[n4] = end;
+					n4++;
+				}
+			}
+
+			// IPv6 : sort range indexes by start and merge overlapping or adjacent ones
+			Integer[] order = new Integer[this.count6];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i * 4;
+			}
+			long[] r = this.ranges6;
+			Arrays.sort(order, (i1, i2) -> compare(r[i1], r[i1 + 1], r[i2], r[i2 + 1]));
+			long[] startsHigh6 = new long[order.length];
+			long[] startsLow6 = new long[order.length];
+			long[] endsHigh6 = new long[order.length];
+			long[] endsLow6 = new long[order.length];
+			int n6 = 0;
+			for (int i : order) {
+				if (n6 > 0 && isContiguous(endsHigh6[n6 - 1], endsLow6[n6 - 1], r[i], r[i + 1])) {
+					if (compare(r[i + 2], r[i + 3], endsHigh6[n6 - 1], endsLow6[n6 - 1]) > 0) {
+						endsHigh6[n6 - 1] = r[i + 2];
+						endsLow6[n6 - 1] = r[i + 3];
+					}
+				} else {
+					startsHigh6[n6] = r[i];
+					startsLow6[n6] = r[i + 1];
+					endsHigh6[n6] = r[i + 2];
+					endsLow6[n6] = r[i + 3];
+					n6++;
+				}
+			}
+
+			return new IPRangeIndex(Arrays.copyOf(starts4, n4), Arrays.copyOf(ends4, n4),
+					Arrays.copyOf(startsHigh6, n6), Arrays.copyOf(startsLow6, n6),
+					Arrays.copyOf(endsHigh6, n6), Arrays.copyOf(endsLow6, n6));
+		}
+
+		/** returns true if a range starting at "start" overlaps or follows a range ending at "end" */
+		private static boolean isContiguous(long endHigh, long endLow, long startHigh, long startLow) {
+			if (compare(startHigh, startLow, endHigh, endLow) <= 0)
+				return true;
+			// start == end + 1, with carry
+			long nextLow = endLow + 1;
+			long nextHigh = nextLow == 0 ? endHigh + 1 : endHigh;
+			return startHigh == nextHigh && startLow == nextLow;
+		}
+
+	}
+
+}
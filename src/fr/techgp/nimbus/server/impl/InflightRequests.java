@@ -0,0 +1,67 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import fr.techgp.nimbus.server.Trace;
+
+/**
+ * <p>This class is a lock-free registry of the requests currently handled, as {@link Trace} instances :</p>
+ * <ul>
+ * <li>each request claims a free slot with a compare-and-set, starting at a position derived from the thread id</li>
+ * <li>the slot is released when the request is over</li>
+ * <li>if all slots are used, the request is simply not tracked</li>
+ * <li>other threads (profiler, watchdog) read the slots without blocking request threads</li>
+ * </ul>
+ */
+public class InflightRequests {
+
+	private final AtomicReferenceArray<Trace> slots;
+	private final int mask;
+
+	/** creates a registry with "capacity" slots, rounded up to a power of 2 */
+	public InflightRequests(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity should be positive");
+		int c = 1;
+		while (c < capacity)
+			c <<= 1;
+		this.slots = new AtomicReferenceArray<>(c);
+		this.mask = c - 1;
+	}
+
+	/** returns the number of slots */
+	public int getCapacity() {
+		return this.slots.length();
+	}
+
+	/** registers a request, returning it's slot or -1 if the registry is full */
+	public int add(Trace trace) {
+		int start = (int) (trace.thread().getId() * 0x9E3779B9L) & this.mask;
+		for (int i = 0; i <= this.mask; i++) {
+			int slot = (start + i) & this.mask;
+			if (this.slots.get(slot) == null && this.slots.compareAndSet(slot, null, trace))
+				return slot;
+		}
+		return -1;
+	}
+
+	/** unregisters a request, using the slot returned by {@link InflightRequests#add(Trace)} */
+	public void remove(int slot, Trace trace) {
+		if (slot >= 0)
+			this.slots.compareAndSet(slot, trace, null);
+	}
+
+	/** returns the requests currently handled */
+	public List<Trace> snapshot() {
+		List<Trace> result = new ArrayList<>();
+		for (int i = 0; i <= this.mask; i++) {
+			Trace trace = this.slots.get(i);
+			if (trace != null)
+				result.add(trace);
+		}
+		return result;
+	}
+
+}
@@ -24,8 +24,10 @@ public class JWTClientSession implements ClientSession {
 
 	/** The name of the cookie storing session on the client-side */
 	private static final String CLIENT_SESSION_COOKIE_NAME = "nimbus-client-session";
-	/** The source of randomness for session id and encryption */
-	private static final SecureRandom RANDOM = new SecureRandom();
+	/** The source of randomness for session id and encryption, created when the first session is (seeding may be slow) */
+	private static final class SecureRandomHolder {
+		private static final SecureRandom INSTANCE = new SecureRandom();
+	}
 
 	private final ServletRequest request;
 	private String id;
@@ -105,7 +107,7 @@ public class JWTClientSession implements ClientSession {
 	}
 
 	protected void initDefaults() {
-		this.id = RandomUtils.randomAscii(RANDOM, 32, true, true, true, null);
+		this.id = RandomUtils.randomAscii(SecureRandomHolder.INSTANCE, 32, true, true, true, null);
 		this.creationTime = System.currentTimeMillis();
 		this.lastAccessedTime = this.creationTime;
 		this.isNew = true;
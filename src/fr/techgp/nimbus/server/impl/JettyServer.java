@@ -1,33 +1,56 @@
 package fr.techgp.nimbus.server.impl;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.SessionTrackingMode;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
 import javax.servlet.http.Part;
 
+import org.eclipse.jetty.http.HttpField;
 import org.eclipse.jetty.http.MultiPartFormInputStream;
+import org.eclipse.jetty.http.PreEncodedHttpField;
+import org.eclipse.jetty.io.ConnectionStatistics;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.HttpInput;
+import org.eclipse.jetty.server.HttpInput.Content;
+import org.eclipse.jetty.server.HttpOutput;
 import org.eclipse.jetty.server.MultiPartFormDataCompliance;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.session.SessionHandler;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import fr.techgp.nimbus.server.ContentOutput;
+import fr.techgp.nimbus.server.Metrics;
 import fr.techgp.nimbus.server.MimeTypes;
+import fr.techgp.nimbus.server.PreEncodedHeaders;
+import fr.techgp.nimbus.server.Render;
 import fr.techgp.nimbus.server.Router;
+import fr.techgp.nimbus.server.Trace;
+import fr.techgp.nimbus.server.jfr.ClientSessionEvent;
+import fr.techgp.nimbus.server.jfr.RenderEvent;
+import fr.techgp.nimbus.server.jfr.RequestEvent;
 import fr.techgp.nimbus.utils.ConversionUtils;
 
 /**
@@ -45,7 +68,17 @@ public class JettyServer {
 	private String keystorePassword;
 	private MultipartConfigElement multipart = null;
 	private SessionConfig session = new SessionConfig();
+	private AccessLog accessLog = null;
+	private ConcurrencyLimiter limiter = null;
+	private ConnectionProtection protection = null;
+	private long maxBodySize = -1;
+	private Metrics metrics = null;
+	private InflightRequests inflight = null;
+	private SlowRequestWatchdog watchdog = null;
+	private WarmUp warmUp = null;
+	private WarmUp.Report warmUpReport = null;
 	private Server server;
+	private JettyRouterHandler handler;
 
 	/** creates a Jetty server wrapper that will use the specified port when started */
 	public JettyServer(int port) {
@@ -80,55 +113,342 @@ public class JettyServer {
 		return this;
 	}
 
+	/** then configures an asynchronous access log, with "capacity" records in memory and file rotation after "maxFileSize" bytes */
+	public JettyServer accessLog(String file, int capacity, long maxFileSize, int maxFiles) {
+		this.accessLog = new AccessLog(new File(file), capacity, maxFileSize, maxFiles);
+		return this;
+	}
+
+	/** returns the access log, if configured */
+	public AccessLog getAccessLog() {
+		return this.accessLog;
+	}
+
+	/** then configures an adaptive concurrency limiter, rejecting excess requests with a "503 Service Unavailable" response */
+	public JettyServer limit(ConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+		return this;
+	}
+
+	/** returns the concurrency limiter, if configured */
+	public ConcurrencyLimiter getLimiter() {
+		return this.limiter;
+	}
+
+	/** then configures connection-level protections (maximum connections, low-resources mode and minimum data rates) */
+	public JettyServer protect(ConnectionProtection protection) {
+		this.protection = protection;
+		return this;
+	}
+
+	/** returns the connection-level protections, if configured */
+	public ConnectionProtection getProtection() {
+		return this.protection;
+	}
+
+	/** then configures the default request body size limit, in bytes, for requests without a specific limit (see {@link Router#limit}) */
+	public JettyServer maxBodySize(long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+		return this;
+	}
+
+	/** then configures a {@link Metrics} registry, that will receive server, connector, thread pool, session and request statistics */
+	public JettyServer metrics(Metrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/** then tracks requests currently handled in a registry with "capacity" slots, for diagnostic purpose (profiler, watchdog) */
+	public JettyServer inflight(int capacity) {
+		this.inflight = new InflightRequests(capacity);
+		return this;
+	}
+
+	/** returns the registry of requests currently handled, if configured */
+	public InflightRequests getInflightRequests() {
+		return this.inflight;
+	}
+
+	/** then configures a watchdog, detecting slow requests in the registry configured by {@link JettyServer#inflight(int)} */
+	public JettyServer watchdog(SlowRequestWatchdog watchdog) {
+		this.watchdog = watchdog;
+		return this;
+	}
+
+	/** returns the slow request watchdog, if configured */
+	public SlowRequestWatchdog getWatchdog() {
+		return this.watchdog;
+	}
+
+	/** then configures a JIT warm-up, run in-process on the {@link Router} before the connector is opened */
+	public JettyServer warmUp(WarmUp warmUp) {
+		this.warmUp = warmUp;
+		return this;
+	}
+
+	/** returns the result of the warm-up, if configured and once the server is started */
+	public WarmUp.Report getWarmUpReport() {
+		return this.warmUpReport;
+	}
+
 	/** starts the Jetty server using with a special {@link Handler} that will use the {@link Router} to handle requests */
 	public JettyServer start(Router router) throws Exception {
-		this.server = createAndStartServer(router, this.port, this.keystoreFile, this.keystorePassword, this.multipart, this.session);
+		if (this.accessLog != null)
+			this.accessLog.start();
+		if (this.warmUp != null)
+			this.warmUpReport = this.warmUp.run(router);
+		this.handler = new JettyRouterHandler(router, this);
+		this.server = createAndStartServer(this.handler, this.port, this.keystoreFile, this.keystorePassword, this.session, this.protection, this.metrics);
+		if (this.metrics != null)
+			this.registerMetrics(this.metrics);
+		if (this.watchdog != null)
+			this.watchdog.start();
+		return this;
+	}
+
+	/** replaces the {@link Router} of the started server, requests in progress finishing with the previous one */
+	public JettyServer router(Router router) {
+		this.handler.setRouter(router);
 		return this;
 	}
 
+	/** registers statistics from the optional access log, concurrency limiter, connection protections and watchdog */
+	private void registerMetrics(Metrics metrics) {
+		AccessLog accessLog = this.accessLog;
+		if (accessLog != null) {
+			metrics.counter("nimbus_accesslog_dropped_total", "Access log records dropped because the buffer was full", null, accessLog::getDropped);
+			metrics.counter("nimbus_accesslog_errors_total", "Access log write failures, each losing a batch of records", null, accessLog::getErrors);
+		}
+		ConcurrencyLimiter limiter = this.limiter;
+		if (limiter != null) {
+			metrics.gauge("nimbus_limiter_limit", "Current adaptive concurrency limit", null, limiter::getLimit);
+			metrics.gauge("nimbus_limiter_inflight", "Requests currently processed under the concurrency limit", null, limiter::getInflight);
+			metrics.counter("nimbus_limiter_rejected_total", "Requests rejected by the concurrency limit", null, limiter::getRejected);
+		}
+		ConnectionProtection protection = this.protection;
+		if (protection != null) {
+			metrics.counter("nimbus_protection_connection_limit_total", "Times the connection limit was reached", null, protection::getConnectionLimitReached);
+			metrics.counter("nimbus_protection_low_resources_total", "Times the server went into low-resources mode", null, protection::getLowResources);
+			metrics.counter("nimbus_protection_data_rate_violations_total", "Transfers aborted because of a too slow client", "direction=\"request\"", protection::getRequestDataRateViolations);
+			metrics.counter("nimbus_protection_data_rate_violations_total", "Transfers aborted because of a too slow client", "direction=\"response\"", protection::getResponseDataRateViolations);
+		}
+		SlowRequestWatchdog watchdog = this.watchdog;
+		if (watchdog != null)
+			metrics.counter("nimbus_slow_requests_total", "Requests detected as slow by the watchdog", null, watchdog::getDetected);
+	}
+
 	/** stops the Jetty server */
 	public JettyServer stop() throws Exception {
+		if (this.watchdog != null)
+			this.watchdog.stop();
 		this.server.stop();
 		this.server = null;
+		this.handler = null;
+		if (this.accessLog != null)
+			this.accessLog.close();
 		return this;
 	}
 
 	/** This {@link Handler} uses a {@link Router} to handle incoming request and associated answers. */
 	public static final class JettyRouterHandler extends SessionHandler {
 
-		private final Router router;
+		/** The current {@link Router}, read once per request, that should not be modified once published */
+		private volatile Router router;
 		private final MultipartConfigElement multipart;
 		private final SessionConfig session;
+		private final AccessLog accessLog;
+		private final ConcurrencyLimiter limiter;
+		private final long maxBodySize;
+		/** Request latencies, by status class (1xx to 5xx), if metrics are enabled */
+		private final Metrics.Histogram[] durations;
+		private final InflightRequests inflight;
 
 		public JettyRouterHandler(Router router, MultipartConfigElement multipart, SessionConfig session) {
 			this.router = router;
 			this.multipart = multipart;
 			this.session = session;
+			this.accessLog = null;
+			this.limiter = null;
+			this.maxBodySize = -1;
+			this.durations = null;
+			this.inflight = null;
+		}
+
+		/** creates a handler using the options configured on the specified {@link JettyServer} */
+		public JettyRouterHandler(Router router, JettyServer server) {
+			this.router = router;
+			this.multipart = server.multipart;
+			this.session = server.session;
+			this.accessLog = server.accessLog;
+			this.limiter = server.limiter;
+			this.maxBodySize = server.maxBodySize;
+			if (server.metrics != null) {
+				this.durations = new Metrics.Histogram[5];
+				for (int i = 0; i < 5; i++) {
+					this.durations[i] = server.metrics.histogram("nimbus_http_request_duration_seconds", "Request latency by status class",
+							"status=\"" + (i + 1) + "xx\"", Metrics.LATENCY_BOUNDS);
+				}
+			} else
+				this.durations = null;
+			this.inflight = server.inflight;
+		}
+
+		/** replaces the {@link Router}, new requests using it while requests in progress finish with the previous one */
+		public void setRouter(Router router) {
+			this.router = router;
 		}
 
 		@Override
 		public void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
 				throws IOException, ServletException {
+			long start = System.nanoTime();
+			RequestEvent event = new RequestEvent();
+			event.begin();
 			ServletRequest req = new JettyServletRequest(request, this.session, this.multipart);
-			ServletResponse res = new ServletResponse(response);
-			this.router.process(req, res);
-			// Save client session, if any
-			JWTClientSession.save(req.clientSession(false), res);
+			ServletResponse res = new JettyServletResponse(response, baseRequest.getResponse());
+			// Trace phases and route only when JFR is recording request events, or when requests are tracked
+			Trace trace = (event.isEnabled() || this.inflight != null) ? new Trace(req.method(), req.path()) : null;
+			int slot = (this.inflight != null) ? this.inflight.add(trace) : -1;
 			try {
-				// Write response
-				res.body().render(req, res, StandardCharsets.UTF_8, () -> {
-					try {
-						return response.getOutputStream();
-					} catch (IOException ex) {
-						throw new RuntimeException(ex);
-					}
-				});
-			} catch (Exception ex) {
-				// The connection may have been closed by client.
-				// Shouldn't it be an EofException ?
-				// System.out.println(ex.getClass().getName() + " on " + req.path());
+				this.handle(req, res, trace, event, start, baseRequest, request, response);
+			} finally {
+				if (slot != -1)
+					this.inflight.remove(slot, trace);
+			}
+		}
+
+		/** handles the request, once the {@link ServletRequest}, {@link ServletResponse} and optional {@link Trace} are ready */
+		private void handle(ServletRequest req, ServletResponse res, Trace trace, RequestEvent event, long start,
+				Request baseRequest, HttpServletRequest request, HttpServletResponse response) {
+			// Use the same Router for the whole request, even if it is replaced meanwhile
+			Router router = this.router;
+			// Reject oversized bodies before reading them, or stop reading them as soon as the limit is reached (chunked)
+			long maxBodySize = router.bodyLimit(req);
+			if (maxBodySize < 0)
+				maxBodySize = this.maxBodySize;
+			long contentLength = request.getContentLengthLong();
+			boolean tooLarge = maxBodySize >= 0 && contentLength > maxBodySize;
+			if (maxBodySize >= 0 && contentLength == -1)
+				baseRequest.getHttpInput().addInterceptor(new BodyLimitInterceptor(maxBodySize, response));
+			boolean limited = this.limiter != null && !this.limiter.isExempt(req);
+			boolean acquired = false;
+			RenderEvent renderEvent = new RenderEvent();
+			try {
+				if (tooLarge) {
+					res.type(Router.DEFAULT_CONTENT_TYPE);
+					res.header("Connection", "close");
+					res.body(Render.payloadTooLarge());
+				} else if (limited && !this.limiter.acquire()) {
+					// Shed load immediately when the concurrency limit is reached, instead of queuing
+					res.type(Router.DEFAULT_CONTENT_TYPE);
+					res.intHeader("Retry-After", this.limiter.getRetryAfter());
+					res.body(Render.serviceUnavailable());
+				} else {
+					acquired = limited;
+					router.process(req, res, trace);
+				}
+				if (trace != null)
+					trace.enter(Trace.Phase.RENDER);
+				// Save client session, if any
+				saveClientSession(req, res);
+				renderEvent.begin();
+				try {
+					// Write response
+					res.body().render(req, res, StandardCharsets.UTF_8, () -> {
+						try {
+							// Give renders access to Jetty's zero-copy methods, without depending on Jetty
+							ServletOutputStream os = response.getOutputStream();
+							return os instanceof HttpOutput ? new JettyContentOutput((HttpOutput) os) : os;
+						} catch (IOException ex) {
+							throw new RuntimeException(ex);
+						}
+					});
+				} catch (Exception ex) {
+					// The connection may have been closed by client.
+					// Shouldn't it be an EofException ?
+					// System.out.println(ex.getClass().getName() + " on " + req.path());
+					// A streamed body can not report a failure once committed : abort so that the client sees an incomplete response
+					// The same goes for a body partly written but still buffered, that Jetty would otherwise send as complete
+					if (response.isCommitted() || baseRequest.getResponse().getHttpOutput().getWritten() > 0)
+						baseRequest.getHttpChannel().abort(ex);
+				}
+			} finally {
+				// The permit is held until the body is rendered, as lazy bodies (templates, streams, files) are often the expensive part
+				if (acquired)
+					this.limiter.release(System.nanoTime() - start);
+			}
+			if (renderEvent.shouldCommit()) {
+				renderEvent.path = req.path();
+				renderEvent.renderClass = res.body().getClass();
+				renderEvent.status = response.getStatus();
+				renderEvent.bytes = baseRequest.getHttpChannel().getBytesWritten();
+				renderEvent.commit();
 			}
 			baseRequest.setHandled(true);
+			if (trace != null) {
+				trace.enter(Trace.Phase.DONE);
+				if (event.shouldCommit()) {
+					event.method = req.method();
+					event.path = req.path();
+					event.route = trace.route();
+					event.status = response.getStatus();
+					event.before = trace.duration(Trace.Phase.BEFORE);
+					event.handler = trace.duration(Trace.Phase.HANDLER);
+					event.after = trace.duration(Trace.Phase.AFTER);
+					event.render = trace.duration(Trace.Phase.RENDER);
+					event.commit();
+				}
+			}
+			long latency = System.nanoTime() - start;
+			int status = response.getStatus();
+			// Publish access log record, without blocking
+			if (this.accessLog != null)
+				this.accessLog.log(baseRequest.getTimeStamp(), status, latency,
+						baseRequest.getHttpChannel().getBytesWritten(), req.method(), req.path(), req.ip());
+			// Update request metrics, without locking
+			if (this.durations != null && status >= 100 && status < 600)
+				this.durations[status / 100 - 1].observe(latency / 1_000_000_000d);
+		}
+
+	}
+
+	/** This method saves the client session, if any, in a cookie */
+	protected static final void saveClientSession(ServletRequest req, ServletResponse res) {
+		ClientSessionEvent event = new ClientSessionEvent();
+		event.begin();
+		JWTClientSession session = req.clientSession(false);
+		JWTClientSession.save(session, res);
+		if (event.shouldCommit()) {
+			event.operation = ClientSessionEvent.ENCODE;
+			event.path = req.path();
+			event.found = session != null;
+			event.commit();
+		}
+	}
+
+	/** This {@link HttpInput.Interceptor} counts the bytes of request bodies without "Content-Length" (chunked) and stops when "maxBodySize" is reached */
+	public static final class BodyLimitInterceptor implements HttpInput.Interceptor {
+
+		private final long maxBodySize;
+		private final HttpServletResponse response;
+		private long size = 0;
+
+		public BodyLimitInterceptor(long maxBodySize, HttpServletResponse response) {
+			this.maxBodySize = maxBodySize;
+			this.response = response;
+		}
+
+		@Override
+		public Content readFrom(Content content) {
+			if (content != null) {
+				this.size += content.remaining();
+				if (this.size > this.maxBodySize) {
+					// Don't read the end of the body, the connection will be closed instead
+					this.response.setHeader("Connection", "close");
+					throw new Render.Exception(Render.payloadTooLarge());
+				}
+			}
+			return content;
 		}
 
 	}
@@ -162,9 +482,82 @@ public class JettyServer {
 
 	}
 
-	/** This method creates a Jetty {@link Server} using specified handler and port and optional keystore */
+	/** This {@link ServletResponse} sets headers pre-encoded as {@link PreEncodedHttpField} directly in Jetty's response */
+	public static class JettyServletResponse extends ServletResponse implements PreEncodedHeaders {
+
+		private final org.eclipse.jetty.server.Response base;
+
+		public JettyServletResponse(HttpServletResponse response, org.eclipse.jetty.server.Response base) {
+			super(response);
+			this.base = base;
+		}
+
+		@Override
+		public Object encode(String name, String value) {
+			return new PreEncodedHttpField(name, value);
+		}
+
+		@Override
+		public void header(Object encoded, boolean add) {
+			// Jetty writes pre-encoded fields as is
+			if (add)
+				this.base.getHttpFields().add((HttpField) encoded);
+			else
+				this.base.getHttpFields().put((HttpField) encoded);
+		}
+
+	}
+
+	/** This {@link OutputStream} exposes the zero-copy methods of Jetty's {@link HttpOutput} as a {@link ContentOutput} */
+	public static final class JettyContentOutput extends OutputStream implements ContentOutput {
+
+		private final HttpOutput output;
+
+		public JettyContentOutput(HttpOutput output) {
+			this.output = output;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.output.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.output.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.output.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.output.close();
+		}
+
+		@Override
+		public void sendContent(ByteBuffer buffer) throws IOException {
+			this.output.sendContent(buffer);
+		}
+
+		@Override
+		public void sendContent(ReadableByteChannel channel) throws IOException {
+			this.output.sendContent(channel);
+		}
+
+		@Override
+		public void write(ByteBuffer buffer) throws IOException {
+			this.output.write(buffer);
+		}
+
+	}
+
+	/** This method creates a Jetty {@link Server} using specified handler and port and optional keystore and protections */
 	@SuppressWarnings("resource")
-	protected static final Server createAndStartServer(Router router, int port, String keystore, String keystorePassword, MultipartConfigElement multipart, SessionConfig session) throws Exception {
+	protected static final Server createAndStartServer(JettyRouterHandler handler, int port, String keystore, String keystorePassword, SessionConfig session,
+			ConnectionProtection protection, Metrics metrics) throws Exception {
 		// Create server
 		Server server = new Server();
 
@@ -176,8 +569,11 @@ public class JettyServer {
 		connector.setPort(port);
 		server.setConnectors(new Connector[] { connector });
 
+		// Add optional protections
+		if (protection != null)
+			protection.install(server, connector);
+
 		// Add handler
-		JettyRouterHandler handler = new JettyRouterHandler(router, multipart, session);
 		server.setHandler(handler);
 
 		// Configure session management
@@ -190,12 +586,50 @@ public class JettyServer {
 		handler.getSessionCookieConfig().setPath(session.getCookiePath());
 		handler.getSessionCookieConfig().setDomain(session.getCookieDomain());
 
+		// Register server statistics
+		if (metrics != null)
+			registerServerMetrics(metrics, server, connector, handler);
+
 		// Start
 		server.start();
 		// server.join();
 		return server;
 	}
 
+	/** This method registers connector, thread pool and session statistics into "metrics" */
+	protected static final void registerServerMetrics(Metrics metrics, Server server, ServerConnector connector, SessionHandler handler) {
+		// Connector
+		ConnectionStatistics connections = new ConnectionStatistics();
+		connector.addBean(connections);
+		metrics.gauge("jetty_connections", "Open connections", null, connections::getConnections);
+		metrics.counter("jetty_connections_total", "Accepted connections", null, connections::getConnectionsTotal);
+		metrics.counter("jetty_received_bytes_total", "Bytes received", null, connections::getReceivedBytes);
+		metrics.counter("jetty_sent_bytes_total", "Bytes sent", null, connections::getSentBytes);
+		// Thread pool
+		if (server.getThreadPool() instanceof QueuedThreadPool) {
+			QueuedThreadPool pool = (QueuedThreadPool) server.getThreadPool();
+			metrics.gauge("jetty_threads", "Threads in the pool", null, pool::getThreads);
+			metrics.gauge("jetty_threads_busy", "Busy threads in the pool", null, pool::getBusyThreads);
+			metrics.gauge("jetty_threads_max", "Maximum threads in the pool", null, pool::getMaxThreads);
+			metrics.gauge("jetty_threads_utilization", "Utilization of the thread pool, between 0 and 1", null, pool::getUtilizationRate);
+			metrics.gauge("jetty_queue_size", "Jobs waiting for a thread", null, pool::getQueueSize);
+		}
+		// Server sessions
+		LongAdder sessions = new LongAdder();
+		handler.addEventListener(new HttpSessionListener() {
+			@Override
+			public void sessionCreated(HttpSessionEvent se) {
+				sessions.increment();
+			}
+
+			@Override
+			public void sessionDestroyed(HttpSessionEvent se) {
+				sessions.decrement();
+			}
+		});
+		metrics.gauge("nimbus_sessions_active", "Active server sessions", null, sessions::sum);
+	}
+
 	/** This method creates an HTTPS connector if a keystore is specified, or an HTTP connector otherwise. */
 	protected static final ServerConnector createConnector(Server server, String keystore, String keystorePassword) {
 		if (keystore != null) {
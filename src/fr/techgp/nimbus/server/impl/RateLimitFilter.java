@@ -0,0 +1,164 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import fr.techgp.nimbus.server.Render;
+import fr.techgp.nimbus.server.Request;
+import fr.techgp.nimbus.server.Response;
+import fr.techgp.nimbus.server.Route;
+import fr.techgp.nimbus.server.Session.ServerSession;
+import fr.techgp.nimbus.server.Utils;
+
+/**
+ * <p>This {@link Route} is a "before" filter limiting the request rate of each client, using token buckets :</p>
+ * <ul>
+ * <li>clients are identified by a key, the IP address (see {@link Utils#extractIPWithProxy(Request)}) by default</li>
+ * <li>rules are configured by path prefix, the longest matching prefix being applied</li>
+ * <li>each (rule, key) pair has a bucket of "capacity" tokens, refilled at "rate" tokens per second</li>
+ * <li>buckets are stored in a striped table, each stripe being a small LRU map with its own lock, evicting the
+ * least recently used buckets when the stripe is full, so that memory is bounded and no global lock is taken</li>
+ * <li>rejected requests get a "429 Too Many Requests" response</li>
+ * <li>the "X-RateLimit-Limit", "X-RateLimit-Remaining" and "Retry-After" headers are set accordingly</li>
+ * <li>synthetic requests of the {@link WarmUp} are not limited</li>
+ * </ul>
+ *
+ * <pre>router.before("/*", new RateLimitFilter(16, 1024).rule("/api/", 20, 5));</pre>
+ */
+public class RateLimitFilter implements Route {
+
+	/** the default key, based on client IP address */
+	public static final Function<Request, String> IP = Utils::extractIPWithProxy;
+	/** an alternative key, based on server session id if any, or client IP address otherwise */
+	public static final Function<Request, String> SESSION_OR_IP = (req) -> {
+		ServerSession session = req.session(false);
+		return session != null ? session.id() : Utils.extractIPWithProxy(req);
+	};
+
+	private final Function<Request, String> key;
+	private final int stripes;
+	private final int maxKeysPerStripe;
+	/** The rules, sorted by decreasing prefix length, so that the first matching rule is the longest prefix */
+	private volatile Rule[] rules = new Rule[0];
+
+	/** creates a filter using client IP address as key, with "stripes" locks and up to "maxKeysPerStripe" buckets per stripe and per rule */
+	public RateLimitFilter(int stripes, int maxKeysPerStripe) {
+		this(IP, stripes, maxKeysPerStripe);
+	}
+
+	/** creates a filter using a custom key, with "stripes" locks and up to "maxKeysPerStripe" buckets per stripe and per rule */
+	public RateLimitFilter(Function<Request, String> key, int stripes, int maxKeysPerStripe) {
+		if (stripes <= 0 || maxKeysPerStripe <= 0)
+			throw new IllegalArgumentException("stripes and maxKeysPerStripe should be positive");
+		this.key = key;
+		this.stripes = stripes;
+		this.maxKeysPerStripe = maxKeysPerStripe;
+	}
+
+	/** then adds a rule allowing bursts of "capacity" requests and "rate" requests per second for paths starting with "prefix" */
+	public RateLimitFilter rule(String prefix, int capacity, double rate) {
+		if (capacity <= 0 || rate <= 0)
+			throw new IllegalArgumentException("capacity and rate should be positive");
+		Rule[] array = Arrays.copyOf(this.rules, this.rules.length + 1);
+		array[this.rules.length] = new Rule(prefix, capacity, rate, this.stripes, this.maxKeysPerStripe);
+		Arrays.sort(array, (r1, r2) -> Integer.compare(r2.prefix.length(), r1.prefix.length()));
+		this.rules = array;
+		return this;
+	}
+
+	@Override
+	public Render handle(Request request, Response response) throws Exception {
+		Rule rule = this.find(request.path());
+		if (rule == null || WarmUp.isWarmUp(request))
+			return null;
+		String k = this.key.apply(request);
+		if (k == null)
+			return null;
+		// Consume a token, if available
+		long now = System.nanoTime();
+		boolean allowed;
+		double remaining;
+		Stripe stripe = rule.stripes[(k.hashCode() & 0x7fffffff) % rule.stripes.length];
+		synchronized (stripe) {
+			Bucket bucket = stripe.get(k);
+			if (bucket == null) {
+				bucket = new Bucket(rule.capacity, now);
+				stripe.put(k, bucket);
+			} else {
+				bucket.tokens = Math.min(rule.capacity, bucket.tokens + (now - bucket.time) * rule.rate / 1_000_000_000d);
+				bucket.time = now;
+			}
+			allowed = bucket.tokens >= 1;
+			if (allowed)
+				bucket.tokens -= 1;
+			remaining = bucket.tokens;
+		}
+		response.intHeader("X-RateLimit-Limit", rule.capacity);
+		response.intHeader("X-RateLimit-Remaining", (int) remaining);
+		if (allowed)
+			return null;
+		// Tell the client when the next token will be available
+		response.intHeader("Retry-After", (int) Math.ceil((1 - remaining) / rule.rate));
+		return Render.tooManyRequests();
+	}
+
+	/** returns the rule with the longest prefix matching "path", or null if none */
+	private Rule find(String path) {
+		for (Rule rule : this.rules) {
+			if (path.startsWith(rule.prefix))
+				return rule;
+		}
+		return null;
+	}
+
+	/** A rate limit applied to all paths starting with "prefix", with it's own striped table of buckets */
+	private static final class Rule {
+
+		private final String prefix;
+		private final int capacity;
+		private final double rate;
+		private final Stripe[] stripes;
+
+		public Rule(String prefix, int capacity, double rate, int stripes, int maxKeysPerStripe) {
+			this.prefix = prefix;
+			this.capacity = capacity;
+			this.rate = rate;
+			this.stripes = new Stripe[stripes];
+			for (int i = 0; i < stripes; i++) {
+				this.stripes[i] = new Stripe(maxKeysPerStripe);
+			}
+		}
+	}
+
+	/** A part of the table, in access order, evicting the least recently used bucket when full */
+	private static final class Stripe extends LinkedHashMap<String, Bucket> {
+
+		private static final long serialVersionUID = 1L;
+		private final int maxKeys;
+
+		public Stripe(int maxKeys) {
+			super(16, 0.75f, true);
+			this.maxKeys = maxKeys;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+			return size() > this.maxKeys;
+		}
+	}
+
+	/** The state of a token bucket, only accessed while holding the lock of it's stripe */
+	private static final class Bucket {
+
+		private double tokens;
+		private long time;
+
+		public Bucket(double tokens, long time) {
+			this.tokens = tokens;
+			this.time = time;
+		}
+	}
+
+}
@@ -0,0 +1,355 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.servlet.http.HttpServletRequest;
+
+import fr.techgp.nimbus.server.Metrics;
+import fr.techgp.nimbus.server.Render;
+import fr.techgp.nimbus.server.Request;
+import fr.techgp.nimbus.server.Response;
+import fr.techgp.nimbus.server.Route;
+import fr.techgp.nimbus.server.Utils;
+
+/**
+ * <p>This {@link Route} forwards requests to an upstream HTTP server, for paths starting with a prefix :</p>
+ * <ul>
+ * <li>the upstream URL is the "upstreamUrl" followed by the decoded and normalized request path without "prefix", encoded again,
+ * and the query string, so that encoded characters or dot segments can not escape the upstream base path</li>
+ * <li>requests go through a shared {@link HttpClient}, keeping HTTP/1.1 connections alive in its pool</li>
+ * <li>the exchange is asynchronous ({@link HttpClient#sendAsync(HttpRequest, HttpResponse.BodyHandler)}), the request thread
+ * only waiting for the response headers, and then for each part of the response body while rendering it</li>
+ * <li>request and response bodies are streamed, the response body being requested one part at a time</li>
+ * <li>headers are forwarded, except hop-by-hop headers, and "X-Real-IP", "X-Forwarded-For", "X-Forwarded-Host" and
+ * "X-Forwarded-Proto" are set by the proxy so that {@link Utils#extractIPWithProxy(Request)} works upstream,
+ * the client's "X-Real-IP", "X-Forwarded-Host" and "X-Forwarded-Proto" being replaced so that it can not choose them</li>
+ * <li>connection failures answer "502 Bad Gateway" and timeouts answer "504 Gateway Timeout"</li>
+ * <li>an upstream server stalling while sending the response body for more than the body idle timeout aborts the response</li>
+ * <li>the upstream response is released if its body is never rendered (when replaced by a filter for instance)</li>
+ * </ul>
+ *
+ * <p>The request must be a {@link ServletRequest}, to stream it's body.</p>
+ *
+ * <pre>router.proxy("/api", "http://localhost:8081/v1");</pre>
+ *
+ * @see fr.techgp.nimbus.server.Router#proxy(String, String)
+ */
+public class ReverseProxy implements Route {
+
+	/** the default connection timeout */
+	public static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+	/** the default timeout until response headers are received */
+	public static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(30);
+	/** the default maximum delay between two parts of the response body */
+	public static final Duration BODY_IDLE_TIMEOUT = Duration.ofSeconds(30);
+
+	/** Hop-by-hop headers, and headers managed by the {@link HttpClient} itself, that should not be forwarded */
+	private static final Set<String> SKIPPED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+	static {
+		Collections.addAll(SKIPPED_HEADERS, "Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization",
+				"TE", "Trailer", "Transfer-Encoding", "Upgrade", "Host", "Content-Length", "Expect", "HTTP2-Settings",
+				"X-Real-IP", "X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Proto");
+	}
+
+	/** This holder creates the shared {@link HttpClient} when first needed */
+	private static final class DefaultClient {
+		private static final HttpClient instance = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.connectTimeout(CONNECT_TIMEOUT)
+				.build();
+	}
+
+	private final String prefix;
+	private final String upstreamUrl;
+	private final HttpClient client;
+	private final Duration timeout;
+	private final Duration bodyIdleTimeout;
+	private Metrics.Histogram latency = null;
+	private Metrics.Counter timeouts = null;
+	private Metrics.Counter failures = null;
+
+	/** creates a proxy forwarding requests starting with "prefix" to "upstreamUrl", using the shared client and default timeouts */
+	public ReverseProxy(String prefix, String upstreamUrl) {
+		this(prefix, upstreamUrl, DefaultClient.instance, RESPONSE_TIMEOUT, BODY_IDLE_TIMEOUT);
+	}
+
+	/** creates a proxy forwarding requests starting with "prefix" to "upstreamUrl", using a custom client and response timeout */
+	public ReverseProxy(String prefix, String upstreamUrl, HttpClient client, Duration timeout) {
+		this(prefix, upstreamUrl, client, timeout, BODY_IDLE_TIMEOUT);
+	}
+
+	/** creates a proxy forwarding requests starting with "prefix" to "upstreamUrl", using a custom client, response timeout and body idle timeout */
+	public ReverseProxy(String prefix, String upstreamUrl, HttpClient client, Duration timeout, Duration bodyIdleTimeout) {
+		this.prefix = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+		this.upstreamUrl = upstreamUrl.endsWith("/") ? upstreamUrl.substring(0, upstreamUrl.length() - 1) : upstreamUrl;
+		this.client = client;
+		this.timeout = timeout;
+		this.bodyIdleTimeout = bodyIdleTimeout;
+	}
+
+	/** returns the shared {@link HttpClient}, using HTTP/1.1 with keep-alive, without redirects and with {@link ReverseProxy#CONNECT_TIMEOUT} */
+	public static final HttpClient defaultClient() {
+		return DefaultClient.instance;
+	}
+
+	/** returns the path prefix handled by this proxy, without trailing '/' */
+	public String getPrefix() {
+		return this.prefix;
+	}
+
+	/** returns true if the path is the prefix or starts with the prefix followed by '/' */
+	public boolean matches(Request request) {
+		String path = request.path();
+		return path.startsWith(this.prefix) && (path.length() == this.prefix.length() || path.charAt(this.prefix.length()) == '/');
+	}
+
+	/** then registers upstream latency (until response headers), timeouts and failures in "metrics", labelled with the prefix */
+	public ReverseProxy metrics(Metrics metrics) {
+		String labels = "prefix=\"" + this.prefix.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+		this.latency = metrics.histogram("nimbus_proxy_upstream_seconds", "Upstream latency until response headers", labels, Metrics.LATENCY_BOUNDS);
+		this.timeouts = metrics.counter("nimbus_proxy_timeouts_total", "Upstream requests that timed out", labels);
+		this.failures = metrics.counter("nimbus_proxy_failures_total", "Upstream requests that failed", labels);
+		return this;
+	}
+
+	@Override
+	public Render handle(Request request, Response response) throws Exception {
+		HttpServletRequest raw = ((ServletRequest) request).raw();
+
+		// Upstream URL, using the decoded path checked by "matches", without dot segments, encoded again
+		String path = request.path().substring(this.prefix.length());
+		for (String segment : path.split("/")) {
+			if (segment.equals(".") || segment.equals(".."))
+				return Render.badRequest();
+		}
+		String query = raw.getQueryString();
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(this.upstreamUrl + encodePath(path) + (query == null ? "" : "?" + query)))
+				.timeout(this.timeout);
+
+		// Request headers
+		for (String name : Collections.list(raw.getHeaderNames())) {
+			if (SKIPPED_HEADERS.contains(name))
+				continue;
+			try {
+				for (String value : Collections.list(raw.getHeaders(name))) {
+					builder.header(name, value);
+				}
+			} catch (IllegalArgumentException ex) {
+				// Restricted by the HttpClient (such as "Date" or "Via")
+			}
+		}
+		// "X-Real-IP", read first by Utils.extractIPWithProxy, is the connected client, whatever the client sent
+		builder.header("X-Real-IP", request.ip());
+		String forwardedFor = raw.getHeader("X-Forwarded-For");
+		builder.header("X-Forwarded-For", forwardedFor == null ? request.ip() : forwardedFor + ", " + request.ip());
+		if (raw.getHeader("Host") != null)
+			builder.header("X-Forwarded-Host", raw.getHeader("Host"));
+		builder.header("X-Forwarded-Proto", raw.getScheme());
+
+		// Request body, streamed with a known length when possible
+		long length = request.contentLength();
+		if (length == 0 || (length == -1 && raw.getHeader("Transfer-Encoding") == null))
+			builder.method(request.method(), HttpRequest.BodyPublishers.noBody());
+		else {
+			HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofInputStream(() -> {
+				try {
+					return raw.getInputStream();
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+			});
+			builder.method(request.method(), length > 0 ? HttpRequest.BodyPublishers.fromPublisher(body, length) : body);
+		}
+
+		// Send and wait for response headers, the body being received later, one part at a time, while rendering
+		HttpResponse<Flow.Publisher<List<ByteBuffer>>> upstream;
+		long start = System.nanoTime();
+		try {
+			upstream = send(builder.build());
+		} catch (HttpTimeoutException ex) {
+			if (this.timeouts != null)
+				this.timeouts.increment();
+			return Render.gatewayTimeout();
+		} catch (ConnectException ex) {
+			if (this.failures != null)
+				this.failures.increment();
+			return Render.badGateway();
+		} catch (IOException ex) {
+			// A failure while sending the request body may come from the client, or from the upstream server
+			Render.Exception cause = Render.Exception.find(ex);
+			if (cause != null)
+				throw cause;
+			if (this.failures != null)
+				this.failures.increment();
+			return Render.badGateway();
+		} finally {
+			if (this.latency != null)
+				this.latency.observe((System.nanoTime() - start) / 1_000_000_000d);
+		}
+
+		// Response status and headers
+		response.status(upstream.statusCode());
+		for (Map.Entry<String, List<String>> header : upstream.headers().map().entrySet()) {
+			String name = header.getKey();
+			if (SKIPPED_HEADERS.contains(name) || name.startsWith(":"))
+				continue;
+			List<String> values = header.getValue();
+			if (name.equalsIgnoreCase("Content-Type")) {
+				response.type(values.get(0));
+				continue;
+			}
+			for (int i = 0; i < values.size(); i++) {
+				if (i == 0)
+					response.header(name, values.get(i));
+				else
+					response.addHeader(name, values.get(i));
+			}
+		}
+		upstream.headers().firstValueAsLong("Content-Length").ifPresent(response::length);
+
+		// Response body, streamed when the response is rendered
+		BodySubscriber body = new BodySubscriber(this.bodyIdleTimeout);
+		upstream.body().subscribe(body);
+		return body;
+	}
+
+	/** encodes the decoded "path" for an URI, keeping '/' and the characters allowed in a path segment (RFC 3986) */
+	private static String encodePath(String path) {
+		StringBuilder sb = new StringBuilder(path.length() + 16);
+		for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xFF);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "/-._~!$&'()*+,;=:@".indexOf(c) != -1)
+				sb.append(c);
+			else
+				sb.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16))).append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+		}
+		return sb.toString();
+	}
+
+	/** sends "request" asynchronously and waits for the response headers, unwrapping the failure if any */
+	private HttpResponse<Flow.Publisher<List<ByteBuffer>>> send(HttpRequest request) throws IOException, InterruptedException {
+		CompletableFuture<HttpResponse<Flow.Publisher<List<ByteBuffer>>>> future = this.client.sendAsync(request, HttpResponse.BodyHandlers.ofPublisher());
+		try {
+			return future.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			if (ex.getCause() instanceof UncheckedIOException)
+				throw ((UncheckedIOException) ex.getCause()).getCause();
+			throw new IOException(ex.getCause());
+		} catch (InterruptedException ex) {
+			future.cancel(true);
+			throw ex;
+		}
+	}
+
+	/**
+	 * This {@link Render} receives the upstream response body, one part at a time, and writes it to the client.
+	 * It is {@link AutoCloseable} so that the upstream response is released if the body is never rendered.
+	 */
+	private static final class BodySubscriber implements Flow.Subscriber<List<ByteBuffer>>, Render, AutoCloseable {
+
+		/** The marker of the end of the body in the queue */
+		private static final Object END = new Object();
+
+		private final Duration idleTimeout;
+		private final CompletableFuture<Flow.Subscription> subscription = new CompletableFuture<>();
+		/** The received parts, a failure or {@link BodySubscriber#END}, at most one part being requested at a time */
+		private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+		public BodySubscriber(Duration idleTimeout) {
+			this.idleTimeout = idleTimeout;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription.complete(subscription);
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> item) {
+			this.queue.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			this.queue.add(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			this.queue.add(END);
+		}
+
+		/** cancels the upstream response, releasing its connection */
+		@Override
+		public void close() {
+			this.subscription.thenAccept(Flow.Subscription::cancel);
+		}
+
+		@Override
+		public void render(Request request, Response response, Charset charset, Supplier<OutputStream> stream) throws IOException {
+			boolean complete = false;
+			try (OutputStream os = stream.get()) {
+				WritableByteChannel channel = Channels.newChannel(os);
+				while (true) {
+					Object item;
+					try {
+						item = this.queue.poll(this.idleTimeout.toMillis(), TimeUnit.MILLISECONDS);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for the upstream response body", ex);
+					}
+					if (item == null)
+						throw new HttpTimeoutException("Upstream response body idle for more than " + this.idleTimeout.toMillis() + " ms");
+					if (item == END)
+						break;
+					if (item instanceof Throwable)
+						throw new IOException("Upstream response body failed", (Throwable) item);
+					@SuppressWarnings("unchecked")
+					List<ByteBuffer> buffers = (List<ByteBuffer>) item;
+					for (ByteBuffer buffer : buffers) {
+						while (buffer.hasRemaining()) {
+							channel.write(buffer);
+						}
+					}
+					// Ask for the next part only once this one is written, to keep memory bounded
+					this.subscription.join().request(1);
+				}
+				complete = true;
+			} finally {
+				if (!complete)
+					close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fr.techgp.nimbus.server.Trace;
+
+/**
+ * <p>This class is an on-demand sampling profiler, limited to the requests currently handled :</p>
+ * <ul>
+ * <li>at each interval, the stacks of the threads registered in {@link InflightRequests} are captured</li>
+ * <li>each sample is tagged with the {@link Trace#current()} route, or the {@link Trace.Phase} if no route is running</li>
+ * <li>samples are aggregated in the "collapsed stacks" format, one line per distinct stack : <code>route;frame;...;frame count</code></li>
+ * <li>only one profile can run at a time, its duration, interval, depth and number of distinct stacks are bounded</li>
+ * </ul>
+ *
+ * <p>The output can be given to flame graph tools such as <code>flamegraph.pl</code> or speedscope.</p>
+ *
+ * @see https://github.com/brendangregg/FlameGraph
+ */
+public class SamplingProfiler {
+
+	/** the maximum duration of a profile, in milliseconds */
+	public static final long MAX_DURATION = 60_000;
+	/** the minimum interval between samples, in milliseconds */
+	public static final long MIN_INTERVAL = 5;
+	/** the maximum number of distinct stacks, additional stacks being counted as "[truncated]" */
+	public static final int MAX_STACKS = 10_000;
+	/** the maximum number of frames per stack */
+	public static final int MAX_DEPTH = 128;
+
+	private final InflightRequests inflight;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final AtomicBoolean running = new AtomicBoolean(false);
+
+	/** creates a profiler sampling the requests registered in "inflight" */
+	public SamplingProfiler(InflightRequests inflight) {
+		this.inflight = inflight;
+	}
+
+	/** returns true if a profile is running */
+	public boolean isRunning() {
+		return this.running.get();
+	}
+
+	/**
+	 * samples the requests currently handled, during "duration" milliseconds, every "interval" milliseconds
+	 *
+	 * @return the collapsed stacks, sorted by decreasing count, or null if another profile is already running
+	 */
+	public String profile(long duration, long interval) throws InterruptedException {
+		if (!this.running.compareAndSet(false, true))
+			return null;
+		try {
+			Map<String, long[]> stacks = new HashMap<>();
+			long period = Math.max(MIN_INTERVAL, interval);
+			long end = System.currentTimeMillis() + Math.min(Math.max(0, duration), MAX_DURATION);
+			Thread self = Thread.currentThread();
+			while (System.currentTimeMillis() < end) {
+				sample(stacks, self);
+				Thread.sleep(period);
+			}
+			return collapse(stacks);
+		} finally {
+			this.running.set(false);
+		}
+	}
+
+	/** captures the stacks of the requests currently handled and aggregates them in "stacks" */
+	private void sample(Map<String, long[]> stacks, Thread self) {
+		List<Trace> traces = this.inflight.snapshot();
+		traces.removeIf((t) -> t.thread() == self);
+		if (traces.isEmpty())
+			return;
+		// Read tags before capture : a request may change route during capture, but the sample stays attributed
+		long[] ids = new long[traces.size()];
+		String[] tags = new String[traces.size()];
+		for (int i = 0; i < ids.length; i++) {
+			Trace trace = traces.get(i);
+			ids[i] = trace.thread().getId();
+			tags[i] = tag(trace);
+		}
+		ThreadInfo[] infos = this.threads.getThreadInfo(ids, MAX_DEPTH);
+		List<Trace> after = this.inflight.snapshot();
+		StringBuilder sb = new StringBuilder(1024);
+		for (int i = 0; i < infos.length; i++) {
+			// The thread may have died, or moved to another request during capture
+			if (infos[i] == null || !after.contains(traces.get(i)))
+				continue;
+			StackTraceElement[] frames = infos[i].getStackTrace();
+			if (frames.length == 0)
+				continue;
+			sb.setLength(0);
+			sb.append(tags[i]);
+			for (int f = frames.length - 1; f >= 0; f--) {
+				sb.append(';').append(frames[f].getClassName()).append('.').append(frames[f].getMethodName());
+			}
+			String key = sb.toString();
+			long[] count = stacks.get(key);
+			if (count == null) {
+				if (stacks.size() >= MAX_STACKS)
+					count = stacks.computeIfAbsent("[truncated]", (k) -> new long[1]);
+				else
+					stacks.put(key, count = new long[1]);
+			}
+			count[0]++;
+		}
+	}
+
+	/** returns the current route of a request, or it's phase, without ';' which separates frames */
+	private static String tag(Trace trace) {
+		String current = trace.current();
+		if (current != null)
+			return current.replace(';', ',');
+		Trace.Phase phase = trace.phase();
+		if (phase == Trace.Phase.RENDER && trace.route() != null)
+			return trace.route().replace(';', ',') + " [RENDER]";
+		return "[" + (phase == null ? "START" : phase.name()) + "]";
+	}
+
+	/** formats the aggregated stacks, by decreasing count */
+	private static String collapse(Map<String, long[]> stacks) {
+		List<Map.Entry<String, long[]>> entries = new ArrayList<>(stacks.entrySet());
+		entries.sort((e1, e2) -> Long.compare(e2.getValue()[0], e1.getValue()[0]));
+		StringBuilder sb = new StringBuilder(entries.size() * 256);
+		for (Map.Entry<String, long[]> entry : entries) {
+			sb.append(entry.getKey()).append(' ').append(entry.getValue()[0]).append('\n');
+		}
+		return sb.toString();
+	}
+
+}
@@ -18,6 +18,8 @@ import javax.servlet.http.Part;
 import fr.techgp.nimbus.server.MimeTypes;
 import fr.techgp.nimbus.server.Request;
 import fr.techgp.nimbus.server.Upload;
+import fr.techgp.nimbus.server.jfr.ClientSessionEvent;
+import fr.techgp.nimbus.server.jfr.MultipartEvent;
 
 public class ServletRequest implements Request {
 
@@ -223,7 +225,18 @@ public class ServletRequest implements Request {
 	public List<? extends Upload> uploads() {
 		if (this.uploads == null) {
 			String mimetype = Optional.ofNullable(this.contentType()).map(MimeTypes::byContentType).orElse(null);
-			this.uploads = MimeTypes.MULTIPART_FORMDATA.equals(mimetype) ? loadUploads() : Collections.emptyList();
+			if (MimeTypes.MULTIPART_FORMDATA.equals(mimetype)) {
+				MultipartEvent event = new MultipartEvent();
+				event.begin();
+				this.uploads = loadUploads();
+				if (event.shouldCommit()) {
+					event.path = this.path();
+					event.contentLength = this.contentLength();
+					event.parts = this.uploads.size();
+					event.commit();
+				}
+			} else
+				this.uploads = Collections.emptyList();
 		}
 		return this.uploads;
 	}
@@ -251,8 +264,17 @@ public class ServletRequest implements Request {
 
 	@Override
 	public JWTClientSession clientSession(boolean create) {
-		if (this.clientSession == null)
+		if (this.clientSession == null) {
+			ClientSessionEvent event = new ClientSessionEvent();
+			event.begin();
 			this.clientSession = JWTClientSession.load(this, create);
+			if (event.shouldCommit()) {
+				event.operation = ClientSessionEvent.DECODE;
+				event.path = this.path();
+				event.found = this.clientSession != null && !this.clientSession.isNew();
+				event.commit();
+			}
+		}
 		return this.clientSession;
 	}
 
@@ -0,0 +1,240 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.techgp.nimbus.server.Trace;
+
+/**
+ * <p>This class is a watchdog detecting slow requests, using the requests registered in {@link InflightRequests} :</p>
+ * <ul>
+ * <li>a background thread checks the registry periodically, without blocking request threads</li>
+ * <li>when a request exceeds the threshold, the stack of it's thread is captured, once per request</li>
+ * <li>the {@link SlowRequest} is given to a listener (to log it for instance) and kept in a history of "historySize" entries</li>
+ * </ul>
+ *
+ * <p>Requests to an ignored path (long-running by design, like the profiler) are never reported.</p>
+ */
+public class SlowRequestWatchdog {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlowRequestWatchdog.class);
+
+	/** A slow request, with the stack of it's thread when it was detected */
+	public static final class SlowRequest {
+		private final long timestamp;
+		private final String method;
+		private final String path;
+		private final String route;
+		private final Trace.Phase phase;
+		private final String thread;
+		private final long elapsed;
+		private final StackTraceElement[] stack;
+
+		public SlowRequest(long timestamp, String method, String path, String route, Trace.Phase phase, String thread, long elapsed, StackTraceElement[] stack) {
+			this.timestamp = timestamp;
+			this.method = method;
+			this.path = path;
+			this.route = route;
+			this.phase = phase;
+			this.thread = thread;
+			this.elapsed = elapsed;
+			this.stack = stack;
+		}
+
+		/** returns the detection time, as given by {@link System#currentTimeMillis()} */
+		public long getTimestamp() {
+			return this.timestamp;
+		}
+
+		public String getMethod() {
+			return this.method;
+		}
+
+		public String getPath() {
+			return this.path;
+		}
+
+		/** returns the route executing when the request was detected, or null if none */
+		public String getRoute() {
+			return this.route;
+		}
+
+		public Trace.Phase getPhase() {
+			return this.phase;
+		}
+
+		public String getThread() {
+			return this.thread;
+		}
+
+		/** returns the time elapsed since the request started, in milliseconds, when it was detected */
+		public long getElapsed() {
+			return this.elapsed;
+		}
+
+		public StackTraceElement[] getStack() {
+			return this.stack;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(256 + this.stack.length * 80);
+			sb.append(this.method).append(' ').append(this.path)
+					.append(" is running for ").append(this.elapsed).append(" ms")
+					.append(" (phase ").append(this.phase)
+					.append(", route ").append(this.route)
+					.append(", thread ").append(this.thread).append(')');
+			for (StackTraceElement element : this.stack) {
+				sb.append("\n\tat ").append(element);
+			}
+			return sb.toString();
+		}
+	}
+
+	private final InflightRequests inflight;
+	private final long threshold;
+	private final int historySize;
+	private final Consumer<SlowRequest> listener;
+	private volatile String[] ignored = new String[0];
+	/** The last slow requests, oldest first */
+	private final ArrayDeque<SlowRequest> history;
+	/** The requests already reported, used only by the watchdog thread */
+	private final Set<Trace> reported = Collections.newSetFromMap(new IdentityHashMap<>());
+	/** The number of slow requests detected */
+	private final LongAdder detected = new LongAdder();
+	/** The classes of the unexpected errors already logged, used only by the watchdog thread */
+	private final Set<Class<?>> loggedErrors = new HashSet<>();
+	private ScheduledExecutorService executor;
+
+	/**
+	 * creates a new watchdog
+	 *
+	 * @param inflight the registry of requests currently handled
+	 * @param threshold the duration, in milliseconds, above which a request is considered slow
+	 * @param historySize the number of slow requests to keep
+	 * @param listener an optional listener notified, in the watchdog thread, for each slow request
+	 */
+	public SlowRequestWatchdog(InflightRequests inflight, long threshold, int historySize, Consumer<SlowRequest> listener) {
+		if (threshold <= 0)
+			throw new IllegalArgumentException("threshold should be positive");
+		this.inflight = inflight;
+		this.threshold = threshold;
+		this.historySize = historySize;
+		this.listener = listener;
+		this.history = new ArrayDeque<>(historySize);
+	}
+
+	/** then excludes requests to this exact path from reporting */
+	public SlowRequestWatchdog ignore(String path) {
+		String[] array = new String[this.ignored.length + 1];
+		System.arraycopy(this.ignored, 0, array, 0, this.ignored.length);
+		array[this.ignored.length] = path;
+		this.ignored = array;
+		return this;
+	}
+
+	/** returns true if requests to "path" are excluded from reporting */
+	public boolean isIgnored(String path) {
+		for (String ignored : this.ignored) {
+			if (ignored.equals(path))
+				return true;
+		}
+		return false;
+	}
+
+	/** returns the duration, in milliseconds, above which a request is considered slow */
+	public long getThreshold() {
+		return this.threshold;
+	}
+
+	/** returns the number of slow requests detected */
+	public long getDetected() {
+		return this.detected.sum();
+	}
+
+	/** returns the last slow requests, most recent first */
+	public List<SlowRequest> getHistory() {
+		List<SlowRequest> result;
+		synchronized (this.history) {
+			result = new ArrayList<>(this.history);
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	/** starts the watchdog thread, checking requests 4 times per threshold (between 10 ms and 1 s) */
+	public synchronized void start() {
+		if (this.executor != null)
+			return;
+		long period = Math.max(10, Math.min(1000, this.threshold / 4));
+		this.executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "slow-request-watchdog");
+			t.setDaemon(true);
+			return t;
+		});
+		this.executor.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/** stops the watchdog thread */
+	public synchronized void stop() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+			this.executor = null;
+		}
+	}
+
+	/** checks the requests currently handled, reporting the new slow ones */
+	public void check() {
+		try {
+			List<Trace> traces = this.inflight.snapshot();
+			// Forget requests that are over
+			this.reported.retainAll(traces);
+			long now = System.nanoTime();
+			for (Trace trace : traces) {
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(now - trace.start());
+				if (elapsed < this.threshold || this.reported.contains(trace) || isIgnored(trace.path()))
+					continue;
+				this.reported.add(trace);
+				// Read state before the stack, and ignore the stack if the thread moved to another request meanwhile
+				Trace.Phase phase = trace.phase();
+				String route = trace.current() != null ? trace.current() : trace.route();
+				StackTraceElement[] stack = trace.thread().getStackTrace();
+				if (!this.inflight.snapshot().contains(trace))
+					continue;
+				report(new SlowRequest(System.currentTimeMillis(), trace.method(), trace.path(), route, phase, trace.thread().getName(), elapsed, stack));
+			}
+		} catch (RuntimeException ex) {
+			// The watchdog should never stop because of an unexpected error, which is logged once per exception class
+			if (this.loggedErrors.add(ex.getClass()) && logger.isWarnEnabled())
+				logger.warn("Slow request watchdog failed, further " + ex.getClass().getName() + " will not be logged", ex);
+		}
+	}
+
+	/** counts, keeps and notifies a slow request */
+	private void report(SlowRequest request) {
+		this.detected.increment();
+		if (this.historySize > 0) {
+			synchronized (this.history) {
+				if (this.history.size() == this.historySize)
+					this.history.removeFirst();
+				this.history.addLast(request);
+			}
+		}
+		if (this.listener != null)
+			this.listener.accept(request);
+	}
+
+}
@@ -0,0 +1,341 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.servlet.http.HttpServletResponse;
+
+import fr.techgp.nimbus.server.ContentOutput;
+import fr.techgp.nimbus.server.Metrics;
+import fr.techgp.nimbus.server.PreEncodedHeaders;
+import fr.techgp.nimbus.server.Render;
+import fr.techgp.nimbus.server.Request;
+import fr.techgp.nimbus.server.Response;
+import fr.techgp.nimbus.server.Utils;
+import fr.techgp.nimbus.server.render.RenderStatic;
+
+/**
+ * <p>This class keeps small static files in memory, to serve them without file system access :</p>
+ * <ul>
+ * <li>file contents are held in direct {@link ByteBuffer}, outside of the heap, with their precomputed headers, encoded once when
+ * the server supports {@link PreEncodedHeaders}</li>
+ * <li>an up-to-date "file.ext.gz" sidecar (see {@link RenderStatic#precompressed(File)}) is cached along with the file</li>
+ * <li>the cache is a LRU map, bounded by the total size of the cached files, and files above "maxFileSize" are not cached</li>
+ * <li>a file is cached on it's second miss only, so that files requested once (such as a crawler walking the folder) don't evict
+ * the files in use, and don't allocate direct memory that would only be freed by the garbage collector</li>
+ * <li>files are found with the {@link StaticFolderIndex.Metadata} of a {@link StaticFolderIndex}, and an entry is used only while
+ * the index returns the same metadata, so that changes detected by the index invalidate the cache without checking dates on each request</li>
+ * </ul>
+ *
+ * <p>Each {@link Entry} is a {@link Render} answering like {@link RenderStatic}, except for "Range" requests that are not handled.</p>
+ */
+public class StaticFileCache {
+
+	/** the maximum number of files missed once, remembered to be cached on their second miss */
+	public static final int MAX_CANDIDATES = 4096;
+
+	/** The IMF-fixdate format of HTTP dates, such as "Sun, 06 Nov 1994 08:49:37 GMT" */
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	private final long maxSize;
+	private final long maxFileSize;
+	/** The cached files by path, least recently used first, guarded by itself */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+	/** The total size of cached files, guarded by "entries" */
+	private long size = 0;
+	/** The paths of files missed once, least recently missed first, guarded by "entries" */
+	private final LinkedHashMap<String, Boolean> candidates = new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_CANDIDATES;
+		}
+	};
+	private Metrics.Counter hits = new Metrics.Counter();
+	private Metrics.Counter misses = new Metrics.Counter();
+
+	/**
+	 * creates a new cache
+	 *
+	 * @param maxSize the maximum total size of cached files, in bytes
+	 * @param maxFileSize the maximum size of a cached file, in bytes
+	 */
+	public StaticFileCache(long maxSize, long maxFileSize) {
+		this.maxSize = maxSize;
+		this.maxFileSize = Math.min(maxFileSize, maxSize);
+	}
+
+	/** then registers cache hits and misses in "metrics", labelled with "prefix", counting from the values already registered if any */
+	public StaticFileCache metrics(Metrics metrics, String prefix) {
+		String labels = "prefix=\"" + prefix.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+		this.hits = metrics.counter("nimbus_static_cache_hits_total", "Static files served from memory", labels);
+		this.misses = metrics.counter("nimbus_static_cache_misses_total", "Static files not found in memory", labels);
+		return this;
+	}
+
+	/** returns the number of requests served from the cache */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/** returns the number of requests that needed to read the file system */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/** returns the total size of cached files, in bytes */
+	public long getSize() {
+		synchronized (this.entries) {
+			return this.size;
+		}
+	}
+
+	/** returns the cached {@link Entry} for "metadata", or null if it is not cached or if the file changed since it was cached */
+	public Entry get(StaticFolderIndex.Metadata metadata) {
+		Entry entry;
+		synchronized (this.entries) {
+			entry = this.entries.get(metadata.getPath());
+		}
+		if (entry != null && entry.metadata == metadata) {
+			this.hits.increment();
+			return entry;
+		}
+		this.misses.increment();
+		return null;
+	}
+
+	/**
+	 * returns a {@link Render} for the file of "metadata" : the cached {@link Entry} if any, a new {@link Entry} if the file is admitted
+	 * (see {@link StaticFileCache#admit(StaticFolderIndex.Metadata)}), or a {@link RenderStatic} reading the file system otherwise
+	 */
+	public Render render(StaticFolderIndex.Metadata metadata) throws IOException {
+		Entry entry = get(metadata);
+		if (entry == null && admit(metadata))
+			entry = load(metadata);
+		return entry != null ? entry : Render.staticFile(metadata.getFile(), metadata.getMimeType());
+	}
+
+	/**
+	 * returns true if the file of "metadata" should be loaded in the cache, i.e. if it is small enough and if it was already missed
+	 * or is cached in an outdated version, remembering it as missed once otherwise
+	 */
+	public boolean admit(StaticFolderIndex.Metadata metadata) {
+		if (metadata.getLength() > this.maxFileSize)
+			return false;
+		synchronized (this.entries) {
+			if (this.entries.containsKey(metadata.getPath()) || this.candidates.remove(metadata.getPath()) != null)
+				return true;
+			this.candidates.put(metadata.getPath(), Boolean.TRUE);
+			return false;
+		}
+	}
+
+	/** loads the file of "metadata", and it's sidecar if any, and caches them, or returns null if the file is too large */
+	public Entry load(StaticFolderIndex.Metadata metadata) throws IOException {
+		if (metadata.getLength() > this.maxFileSize)
+			return null;
+		File gz = metadata.getPrecompressed();
+		if (gz != null && gz.length() > this.maxFileSize)
+			gz = null;
+		Entry entry = new Entry(metadata, metadata.getMimeType(),
+				read(metadata.getFile()), metadata.getEtag(), metadata.getLastModified(),
+				gz == null ? null : read(gz), gz == null ? null : RenderStatic.etag(gz), gz == null ? -1L : gz.lastModified());
+		synchronized (this.entries) {
+			Entry previous = this.entries.put(metadata.getPath(), entry);
+			if (previous != null)
+				this.size -= previous.size();
+			this.size += entry.size();
+			// Evict the least recently used files until the cache fits in "maxSize"
+			Iterator<Entry> iterator = this.entries.values().iterator();
+			while (this.size > this.maxSize && iterator.hasNext()) {
+				this.size -= iterator.next().size();
+				iterator.remove();
+			}
+		}
+		return entry;
+	}
+
+	/** empties the cache */
+	public void clear() {
+		synchronized (this.entries) {
+			this.entries.clear();
+			this.candidates.clear();
+			this.size = 0;
+		}
+	}
+
+	/** reads "file" in a new direct {@link ByteBuffer} */
+	private static ByteBuffer read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+				//
+			}
+			buffer.flip();
+			return buffer.asReadOnlyBuffer();
+		}
+	}
+
+	/** A cached file, rendered from memory */
+	public static final class Entry implements Render {
+
+		private final StaticFolderIndex.Metadata metadata;
+		private final String mimeType;
+		private final ByteBuffer content;
+		private final String etag;
+		private final long lastModified;
+		private final Headers headers;
+		private final ByteBuffer gzipContent;
+		private final String gzipEtag;
+		private final long gzipLastModified;
+		private final Headers gzipHeaders;
+
+		public Entry(StaticFolderIndex.Metadata metadata, String mimeType, ByteBuffer content, String etag, long lastModified,
+				ByteBuffer gzipContent, String gzipEtag, long gzipLastModified) {
+			this.metadata = metadata;
+			this.mimeType = mimeType != null ? mimeType : "application/octet-stream";
+			this.content = content;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.headers = new Headers(gzipContent != null, false, etag, lastModified);
+			this.gzipContent = gzipContent;
+			this.gzipEtag = gzipEtag;
+			this.gzipLastModified = gzipLastModified;
+			this.gzipHeaders = gzipContent == null ? null : new Headers(true, true, gzipEtag, gzipLastModified);
+		}
+
+		/** returns the memory used by this entry, in bytes */
+		public long size() {
+			return this.content.capacity() + (this.gzipContent == null ? 0 : this.gzipContent.capacity());
+		}
+
+		@Override
+		public void render(Request request, Response response, Charset charset, Supplier<OutputStream> stream) throws IOException {
+			response.type(this.mimeType);
+
+			// Select the content, as RenderStatic does
+			boolean gzip = this.gzipContent != null && Utils.acceptsEncoding(request, "gzip");
+			ByteBuffer content = gzip ? this.gzipContent : this.content;
+			String etag = gzip ? this.gzipEtag : this.etag;
+			long lastModified = gzip ? this.gzipLastModified : this.lastModified;
+			Headers headers = gzip ? this.gzipHeaders : this.headers;
+
+			String ifNoneMatch = request.header("If-None-Match");
+			long ifModifiedSince = request.dateHeader("If-Modified-Since");
+			if (etag.equals(ifNoneMatch) || (ifModifiedSince != -1L && ifModifiedSince == lastModified)) {
+				headers.apply(response, false);
+				response.status(HttpServletResponse.SC_NOT_MODIFIED);
+				response.length(0);
+				try (OutputStream os = stream.get()) {
+					os.flush();
+				}
+				return;
+			}
+
+			headers.apply(response, true);
+			response.status(HttpServletResponse.SC_OK);
+			response.length(content.remaining());
+			try (OutputStream os = stream.get()) {
+				// Each request uses it's own view of the shared buffer
+				ByteBuffer buffer = content.duplicate();
+				if (os instanceof ContentOutput) {
+					((ContentOutput) os).sendContent(buffer);
+					return;
+				}
+				WritableByteChannel channel = Channels.newChannel(os);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		}
+	}
+
+	/** The constant headers of a cached content, built once, the "Date" header being the last one and only sent with the content */
+	private static final class Headers {
+
+		private final String[] names;
+		private final String[] values;
+		/** The headers encoded by the last {@link PreEncodedHeaders} response, reused by responses of the same class */
+		private volatile Encoded encoded = null;
+
+		public Headers(boolean vary, boolean gzip, String etag, long lastModified) {
+			String date = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+			int count = 5 + (vary ? 1 : 0) + (gzip ? 1 : 0);
+			this.names = new String[count];
+			this.values = new String[count];
+			int i = 0;
+			if (vary)
+				set(i++, "Vary", "Accept-Encoding");
+			if (gzip)
+				set(i++, "Content-Encoding", "gzip");
+			set(i++, "Cache-Control", "no-cache");
+			set(i++, "Etag", etag);
+			set(i++, "Last-Modified", date);
+			set(i++, "Accept-Ranges", "bytes");
+			set(i++, "Date", date);
+		}
+
+		private void set(int index, String name, String value) {
+			this.names[index] = name;
+			this.values[index] = value;
+		}
+
+		/** sets these headers on "response", except for the last "Date" header if "date" is false */
+		public void apply(Response response, boolean date) {
+			int count = date ? this.names.length : this.names.length - 1;
+			if (response instanceof PreEncodedHeaders) {
+				PreEncodedHeaders headers = (PreEncodedHeaders) response;
+				Object[] fields = encode(headers);
+				for (int i = 0; i < count; i++) {
+					headers.header(fields[i], false);
+				}
+			} else {
+				for (int i = 0; i < count; i++) {
+					response.header(this.names[i], this.values[i]);
+				}
+			}
+		}
+
+		/** returns the headers encoded by "headers", encoding them again only if the previous ones came from another kind of response */
+		private Object[] encode(PreEncodedHeaders headers) {
+			Encoded encoded = this.encoded;
+			if (encoded == null || encoded.type != headers.getClass()) {
+				Object[] fields = new Object[this.names.length];
+				for (int i = 0; i < fields.length; i++) {
+					fields[i] = headers.encode(this.names[i], this.values[i]);
+				}
+				encoded = new Encoded(headers.getClass(), fields);
+				this.encoded = encoded;
+			}
+			return encoded.fields;
+		}
+	}
+
+	/** The headers encoded by a class of {@link PreEncodedHeaders} response */
+	private static final class Encoded {
+		private final Class<?> type;
+		private final Object[] fields;
+
+		public Encoded(Class<?> type, Object[] fields) {
+			this.type = type;
+			this.fields = fields;
+		}
+	}
+
+}
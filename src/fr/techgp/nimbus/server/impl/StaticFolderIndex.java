@@ -0,0 +1,252 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.techgp.nimbus.server.MimeTypes;
+import fr.techgp.nimbus.server.render.RenderStatic;
+
+/**
+ * <p>This class is an in-memory index of the regular files of a static folder :</p>
+ * <ul>
+ * <li>the folder is scanned once when the index is started, following symbolic links</li>
+ * <li>each file is indexed by it's path relative to the folder, such as <code>/css/style.css</code>, with it's {@link Metadata}</li>
+ * <li>a {@link WatchService} on the folder and it's sub-folders keeps the index current</li>
+ * <li>both existing and missing files are resolved by a single hash lookup, without file system access</li>
+ * </ul>
+ *
+ * <p>As the lookup is a plain string comparison, paths are case-sensitive and folders are not indexed.</p>
+ */
+public class StaticFolderIndex implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(StaticFolderIndex.class);
+
+	/** The metadata of an indexed file, replaced by a new instance when the file changes */
+	public static final class Metadata {
+		private final String path;
+		private final File file;
+		private final long length;
+		private final long lastModified;
+		private final File precompressed;
+		private volatile String mimeType;
+		private volatile String etag;
+
+		public Metadata(String path, File file, long length, long lastModified, File precompressed) {
+			this.path = path;
+			this.file = file;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.precompressed = precompressed;
+		}
+
+		/** returns the path relative to the folder, starting with '/' */
+		public String getPath() {
+			return this.path;
+		}
+
+		public File getFile() {
+			return this.file;
+		}
+
+		public long getLength() {
+			return this.length;
+		}
+
+		public long getLastModified() {
+			return this.lastModified;
+		}
+
+		/** returns the up-to-date "file.gz" sidecar when the file was indexed, or null */
+		public File getPrecompressed() {
+			return this.precompressed;
+		}
+
+		/** returns the MIME type of the file, computed when first needed */
+		public String getMimeType() {
+			if (this.mimeType == null) {
+				String name = this.file.getName();
+				this.mimeType = name.endsWith(".") ? MimeTypes.BINARY : MimeTypes.byName(name);
+			}
+			return this.mimeType;
+		}
+
+		/** returns the ETag of the file, computed when first needed as {@link RenderStatic} does */
+		public String getEtag() throws IOException {
+			if (this.etag == null)
+				this.etag = RenderStatic.etag(this.file);
+			return this.etag;
+		}
+	}
+
+	private final File folder;
+	private final Path root;
+	private final Map<String, Metadata> files = new ConcurrentHashMap<>();
+	private WatchService watcher;
+	/** The classes of the errors already logged, used only by the watching thread */
+	private final Set<Class<?>> loggedErrors = new HashSet<>();
+
+	/** creates an index of "folder", which is empty until the index is started */
+	public StaticFolderIndex(File folder) {
+		this.folder = folder;
+		this.root = folder.toPath();
+	}
+
+	/** returns the number of indexed files */
+	public int size() {
+		return this.files.size();
+	}
+
+	/** returns the metadata of the file at "path", relative to the folder and starting with '/', or null if there is no such file */
+	public Metadata get(String path) {
+		return this.files.get(path);
+	}
+
+	/** scans the folder, then watches it and it's sub-folders, in a daemon thread, to keep the index current */
+	public synchronized StaticFolderIndex start() throws IOException {
+		if (this.watcher != null)
+			return this;
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		this.watcher = watcher;
+		if (this.folder.isDirectory())
+			scan(this.root);
+		Thread thread = new Thread(() -> watch(watcher), "nimbus-static-index");
+		thread.setDaemon(true);
+		thread.start();
+		return this;
+	}
+
+	/** stops watching the folder */
+	@Override
+	public synchronized void close() {
+		if (this.watcher != null) {
+			try {
+				this.watcher.close();
+			} catch (IOException ex) {
+				// Nothing more to do
+			}
+			this.watcher = null;
+		}
+	}
+
+	/** indexes the files in "dir", registering it and it's sub-folders in the {@link WatchService} */
+	private void scan(Path dir) throws IOException {
+		WatchService watcher = this.watcher;
+		Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile())
+					index(file, attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException ex) {
+				// Unreadable files and symbolic link cycles are ignored
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/** returns the key of "path", relative to the folder with '/' separators */
+	private String key(Path path) {
+		StringBuilder sb = new StringBuilder();
+		for (Path name : this.root.relativize(path)) {
+			sb.append('/').append(name.toString());
+		}
+		return sb.toString();
+	}
+
+	/** adds or replaces the metadata of "path", a regular file */
+	private void index(Path path, BasicFileAttributes attrs) {
+		File file = path.toFile();
+		String key = key(path);
+		this.files.put(key, new Metadata(key, file, attrs.size(), attrs.lastModifiedTime().toMillis(), RenderStatic.precompressed(file)));
+	}
+
+	/** updates the index after a change of "path", which may be a file, a sidecar or a folder */
+	private void refresh(Path path) {
+		String key = key(path);
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException ex) {
+			// Deleted : remove the file or the files of the folder
+			String children = key + "/";
+			this.files.keySet().removeIf((k) -> k.equals(key) || k.startsWith(children));
+			attrs = null;
+		}
+		if (attrs != null && attrs.isRegularFile())
+			index(path, attrs);
+		else if (attrs != null && attrs.isDirectory()) {
+			try {
+				scan(path);
+			} catch (IOException ex) {
+				// The folder was deleted meanwhile
+			}
+		}
+		// The sidecar of a file changed, so does it's metadata
+		if (key.endsWith(".gz")) {
+			Path source = path.resolveSibling(path.getFileName().toString().substring(0, path.getFileName().toString().length() - 3));
+			Metadata metadata = this.files.get(key(source));
+			if (metadata != null)
+				this.files.put(metadata.getPath(), new Metadata(metadata.getPath(), metadata.getFile(),
+						metadata.getLength(), metadata.getLastModified(), RenderStatic.precompressed(metadata.getFile())));
+		}
+	}
+
+	/** waits for changes in the watched folders, until the {@link WatchService} is closed */
+	private void watch(WatchService watcher) {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				Path dir = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					try {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							// Some events were lost, so scan everything again
+							scan(this.root);
+							this.files.values().removeIf((m) -> !m.getFile().isFile());
+						} else {
+							refresh(dir.resolve((Path) event.context()));
+						}
+					} catch (IOException | RuntimeException ex) {
+						// The index is updated again on the next change, and the error is logged once per exception class
+						if (this.loggedErrors.add(ex.getClass()) && logger.isWarnEnabled())
+							logger.warn("Static index of " + this.folder + " may be stale, further " + ex.getClass().getName() + " will not be logged", ex);
+					}
+				}
+				// The key is no longer valid when the folder is deleted
+				key.reset();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ex) {
+			// The index was closed
+		}
+	}
+
+}
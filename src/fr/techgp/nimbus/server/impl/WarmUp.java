@@ -0,0 +1,544 @@
+package fr.techgp.nimbus.server.impl;
+
+import java.io.OutputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import fr.techgp.nimbus.server.Cookie;
+import fr.techgp.nimbus.server.Matcher;
+import fr.techgp.nimbus.server.Render;
+import fr.techgp.nimbus.server.Request;
+import fr.techgp.nimbus.server.Response;
+import fr.techgp.nimbus.server.Router;
+import fr.techgp.nimbus.server.Session.ClientSession;
+import fr.techgp.nimbus.server.Session.ServerSession;
+import fr.techgp.nimbus.server.Upload;
+
+/**
+ * <p>This class warms the JIT up before the server accepts traffic, using synthetic requests handled in-process :</p>
+ * <ul>
+ * <li>each sample request goes through {@link Router#process(Request, Response)} and the resulting {@link Render}, written to nowhere</li>
+ * <li>samples are the configured requests, or the GET routes of the {@link Router} without wildcard nor parameter</li>
+ * <li>requests are sent in rounds, until the JIT compilation time stays stable during a few rounds, or until limits are reached</li>
+ * </ul>
+ *
+ * <p>Synthetic requests come from {@link WarmUp#IP}, without cookies nor uploads, and with throwaway in-memory sessions.
+ * Filters protecting the server from clients (rate limiting, block lists, admin checks) should let them through
+ * quietly, using {@link WarmUp#isWarmUp(Request)}. Sample requests should be free of side effects, as routes are really executed.</p>
+ */
+public class WarmUp {
+
+	/** the IP address of synthetic requests */
+	public static final String IP = "0.0.0.0";
+
+	/** The result of a warm-up */
+	public static final class Report {
+		private final long duration;
+		private final long compilationTime;
+		private final int rounds;
+		private final long requests;
+		private final long errors;
+		private final boolean stable;
+
+		public Report(long duration, long compilationTime, int rounds, long requests, long errors, boolean stable) {
+			this.duration = duration;
+			this.compilationTime = compilationTime;
+			this.rounds = rounds;
+			this.requests = requests;
+			this.errors = errors;
+			this.stable = stable;
+		}
+
+		/** returns the warm-up duration, in milliseconds */
+		public long getDuration() {
+			return this.duration;
+		}
+
+		/** returns the JIT compilation time during warm-up, in milliseconds, or -1 if not supported */
+		public long getCompilationTime() {
+			return this.compilationTime;
+		}
+
+		public int getRounds() {
+			return this.rounds;
+		}
+
+		public long getRequests() {
+			return this.requests;
+		}
+
+		/** returns the number of requests answered with a 5xx status */
+		public long getErrors() {
+			return this.errors;
+		}
+
+		/** returns true if compilation stabilized before limits were reached */
+		public boolean isStable() {
+			return this.stable;
+		}
+
+		@Override
+		public String toString() {
+			return this.requests + " requests (" + this.errors + " errors) in " + this.rounds + " rounds and " + this.duration + " ms"
+					+ ", including " + this.compilationTime + " ms of JIT compilation"
+					+ (this.stable ? ", compilation stabilized" : ", limits reached before compilation stabilized");
+		}
+	}
+
+	private final List<String[]> samples = new ArrayList<>();
+	private long maxDuration = 10_000;
+	private long maxRequests = 1_000_000;
+	private long roundDuration = 200;
+	private int stableRounds = 3;
+
+	/** returns true if "request" is a synthetic warm-up request, that filters should neither limit nor log */
+	public static final boolean isWarmUp(Request request) {
+		return request instanceof WarmUpRequest;
+	}
+
+	/** adds a sample request, for instance <code>request("GET", "/index.html?lang=en")</code> */
+	public WarmUp request(String method, String pathAndQuery) {
+		this.samples.add(new String[] { method, pathAndQuery });
+		return this;
+	}
+
+	/** then limits the warm-up duration, in milliseconds (defaults to 10 s), and the total number of requests (defaults to 1 000 000) */
+	public WarmUp limits(long maxDuration, long maxRequests) {
+		this.maxDuration = maxDuration;
+		this.maxRequests = maxRequests;
+		return this;
+	}
+
+	/** then configures the duration of a round, in milliseconds (defaults to 200 ms), and the number of stable rounds required to stop (defaults to 3) */
+	public WarmUp rounds(long roundDuration, int stableRounds) {
+		this.roundDuration = roundDuration;
+		this.stableRounds = stableRounds;
+		return this;
+	}
+
+	/** runs the warm-up on the specified {@link Router} */
+	public Report run(Router router) {
+		List<String[]> samples = this.samples.isEmpty() ? samplesFromRoutes(router) : this.samples;
+		if (samples.isEmpty())
+			return new Report(0, 0, 0, 0, 0, true);
+
+		CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+		boolean monitored = compilation != null && compilation.isCompilationTimeMonitoringSupported();
+		long compilationStart = monitored ? compilation.getTotalCompilationTime() : -1;
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(this.maxDuration);
+		long requests = 0;
+		long errors = 0;
+		int rounds = 0;
+		int stable = 0;
+		long lastCompilation = compilationStart;
+		while (stable < this.stableRounds && requests < this.maxRequests && System.nanoTime() < deadline) {
+			long roundStart = System.nanoTime();
+			long roundEnd = Math.min(deadline, roundStart + TimeUnit.MILLISECONDS.toNanos(this.roundDuration));
+			do {
+				for (String[] sample : samples) {
+					if (handle(router, sample[0], sample[1]) >= 500)
+						errors++;
+				}
+				requests += samples.size();
+			} while (requests < this.maxRequests && System.nanoTime() < roundEnd);
+			rounds++;
+			// A round is stable if the JIT spent less than 5% of the round duration compiling (total of all compiler threads)
+			if (monitored) {
+				long compilationNow = compilation.getTotalCompilationTime();
+				long roundMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roundStart);
+				stable = (compilationNow - lastCompilation) * 20 <= roundMillis ? stable + 1 : 0;
+				lastCompilation = compilationNow;
+			}
+		}
+		long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		long compilationTime = monitored ? lastCompilation - compilationStart : -1;
+		return new Report(duration, compilationTime, rounds, requests, errors, stable >= this.stableRounds);
+	}
+
+	/** handles a synthetic request and returns the response status */
+	private static int handle(Router router, String method, String pathAndQuery) {
+		WarmUpRequest request = new WarmUpRequest(method, pathAndQuery);
+		WarmUpResponse response = new WarmUpResponse();
+		router.process(request, response);
+		try {
+			response.body().render(request, response, StandardCharsets.UTF_8, () -> OutputStream.nullOutputStream());
+		} catch (Exception ex) {
+			return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+		}
+		return response.status();
+	}
+
+	/** returns samples for the GET routes, such as "GET /utils/ping", without wildcard nor parameter */
+	private static List<String[]> samplesFromRoutes(Router router) {
+		List<String[]> samples = new ArrayList<>();
+		for (String name : router.routeNames()) {
+			if (name.startsWith("GET /")) {
+				String path = name.substring(4);
+				if (!path.contains(Matcher.Path.WILDCARD) && path.indexOf(Matcher.Path.PARAMS_PREFIX) == -1)
+					samples.add(new String[] { "GET", path });
+			}
+		}
+		return samples;
+	}
+
+	/** A synthetic {@link Request}, with query parameters and a throwaway session, but without headers, cookies nor uploads */
+	private static final class WarmUpRequest implements Request {
+
+		private final String method;
+		private final String path;
+		private final String query;
+		private final Map<String, List<String>> queryParameters = new LinkedHashMap<>();
+		private final Map<String, String> pathParameters = new HashMap<>();
+		private final Map<String, Object> attributes = new HashMap<>();
+		private WarmUpSession session = null;
+
+		public WarmUpRequest(String method, String pathAndQuery) {
+			this.method = method;
+			int i = pathAndQuery.indexOf('?');
+			this.path = i == -1 ? pathAndQuery : pathAndQuery.substring(0, i);
+			this.query = i == -1 ? null : pathAndQuery.substring(i + 1);
+			if (this.query != null) {
+				for (String pair : this.query.split("&")) {
+					int j = pair.indexOf('=');
+					String name = URLDecoder.decode(j == -1 ? pair : pair.substring(0, j), StandardCharsets.UTF_8);
+					String value = j == -1 ? "" : URLDecoder.decode(pair.substring(j + 1), StandardCharsets.UTF_8);
+					this.queryParameters.computeIfAbsent(name, (n) -> new ArrayList<>()).add(value);
+				}
+			}
+		}
+
+		@Override
+		public String method() {
+			return this.method;
+		}
+
+		@Override
+		public String acceptType() {
+			return null;
+		}
+
+		@Override
+		public String path() {
+			return this.path;
+		}
+
+		@Override
+		public String pathParameter(String name) {
+			return this.pathParameters.get(name);
+		}
+
+		@Override
+		public String pathParameter(String name, String defaultValue) {
+			return this.pathParameters.getOrDefault(name, defaultValue);
+		}
+
+		@Override
+		public void addPathParameter(String name, String value) {
+			this.pathParameters.put(name, value);
+		}
+
+		@Override
+		public String query() {
+			return this.query;
+		}
+
+		@Override
+		public String queryParameter(String name) {
+			List<String> values = this.queryParameters.get(name);
+			return values == null ? null : values.get(0);
+		}
+
+		@Override
+		public String queryParameter(String name, String defaultValue) {
+			String value = queryParameter(name);
+			return value == null ? defaultValue : value;
+		}
+
+		@Override
+		public String[] queryParameterValues(String name) {
+			List<String> values = this.queryParameters.get(name);
+			return values == null ? null : values.toArray(new String[values.size()]);
+		}
+
+		@Override
+		public String contentType() {
+			return null;
+		}
+
+		@Override
+		public long contentLength() {
+			return -1;
+		}
+
+		@Override
+		public String characterEncoding() {
+			return null;
+		}
+
+		@Override
+		public String ip() {
+			return IP;
+		}
+
+		@Override
+		public String header(String name) {
+			return null;
+		}
+
+		@Override
+		public int intHeader(String name) {
+			return -1;
+		}
+
+		@Override
+		public long dateHeader(String name) {
+			return -1;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T> T attribute(String name) {
+			return (T) this.attributes.get(name);
+		}
+
+		@Override
+		public void attribute(String name, Object value) {
+			this.attributes.put(name, value);
+		}
+
+		@Override
+		public void removeAttribute(String name) {
+			this.attributes.remove(name);
+		}
+
+		@Override
+		public Cookie cookie(String name) {
+			return null;
+		}
+
+		@Override
+		public Cookie cookie(String name, String path) {
+			return null;
+		}
+
+		@Override
+		public List<? extends Cookie> cookies() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Upload upload(String name) {
+			return null;
+		}
+
+		@Override
+		public List<? extends Upload> uploads(String name) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public List<? extends Upload> uploads() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public ServerSession session() {
+			return session(true);
+		}
+
+		@Override
+		public ServerSession session(boolean create) {
+			if (this.session == null && create)
+				this.session = new WarmUpSession();
+			return this.session;
+		}
+
+		@Override
+		public ClientSession clientSession() {
+			return clientSession(true);
+		}
+
+		@Override
+		public ClientSession clientSession(boolean create) {
+			if (this.session == null && create)
+				this.session = new WarmUpSession();
+			return this.session;
+		}
+
+	}
+
+	/** A throwaway in-memory session, used as server or client session by a single synthetic request */
+	private static final class WarmUpSession implements ServerSession, ClientSession {
+
+		private final long creationTime = System.currentTimeMillis();
+		private final Map<String, Object> attributes = new HashMap<>();
+		private int maxInactiveInterval = 0;
+
+		@Override
+		public String id() {
+			return "warm-up";
+		}
+
+		@Override
+		public long creationTime() {
+			return this.creationTime;
+		}
+
+		@Override
+		public long lastAccessedTime() {
+			return this.creationTime;
+		}
+
+		@Override
+		public boolean isNew() {
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T> T attribute(String name) {
+			return (T) this.attributes.get(name);
+		}
+
+		@Override
+		public void attribute(String name, Object value) {
+			this.attributes.put(name, value);
+		}
+
+		@Override
+		public void removeAttribute(String name) {
+			this.attributes.remove(name);
+		}
+
+		@Override
+		public int maxInactiveInterval() {
+			return this.maxInactiveInterval;
+		}
+
+		@Override
+		public void maxInactiveInterval(int interval) {
+			this.maxInactiveInterval = interval;
+		}
+
+		@Override
+		public void invalidate() {
+			this.attributes.clear();
+		}
+
+	}
+
+	/** A synthetic {@link Response}, keeping status, type, body and headers */
+	private static final class WarmUpResponse implements Response {
+
+		private int status = HttpServletResponse.SC_OK;
+		private String type;
+		private Render body;
+		private final Map<String, String> headers = new HashMap<>();
+
+		@Override
+		public int status() {
+			return this.status;
+		}
+
+		@Override
+		public void status(int status) {
+			this.status = status;
+		}
+
+		@Override
+		public String type() {
+			return this.type;
+		}
+
+		@Override
+		public void type(String contentType) {
+			this.type = contentType;
+		}
+
+		@Override
+		public Render body() {
+			return this.body;
+		}
+
+		@Override
+		public void body(Render body) {
+			this.body = body;
+		}
+
+		@Override
+		public String header(String name) {
+			return this.headers.get(name);
+		}
+
+		@Override
+		public void header(String name, String value) {
+			this.headers.put(name, value);
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			this.headers.merge(name, value, (v1, v2) -> v1 + ", " + v2);
+		}
+
+		@Override
+		public void intHeader(String name, int value) {
+			header(name, Integer.toString(value));
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+			addHeader(name, Integer.toString(value));
+		}
+
+		@Override
+		public void dateHeader(String name, long value) {
+			header(name, Long.toString(value));
+		}
+
+		@Override
+		public void addDateHeader(String name, long value) {
+			addHeader(name, Long.toString(value));
+		}
+
+		@Override
+		public void length(long length) {
+			//
+		}
+
+		@Override
+		public void cookie(String name, String value) {
+			//
+		}
+
+		@Override
+		public void cookie(String name, String path, String value, String domain, int maxAge, boolean secure, boolean httpOnly) {
+			//
+		}
+
+		@Override
+		public void removeCookie(String name) {
+			//
+		}
+
+		@Override
+		public Render redirect(String location) {
+			this.status(HttpServletResponse.SC_FOUND);
+			this.header("Location", location);
+			return Render.EMPTY;
+		}
+
+	}
+
+}
@@ -5,13 +5,38 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -27,6 +52,8 @@ import org.w3c.dom.NodeList;
 
 import com.google.gson.JsonObject;
 
+import fr.techgp.nimbus.server.Matcher;
+import fr.techgp.nimbus.server.Metrics;
 import fr.techgp.nimbus.server.MimeTypes;
 import fr.techgp.nimbus.server.Render;
 import fr.techgp.nimbus.server.Request;
@@ -34,7 +61,11 @@ import fr.techgp.nimbus.server.Response;
 import fr.techgp.nimbus.server.Route;
 import fr.techgp.nimbus.server.Router;
 import fr.techgp.nimbus.server.Utils;
+import fr.techgp.nimbus.server.render.FreeMarkerFragmentCache;
+import fr.techgp.nimbus.server.render.RenderFreeMarker;
+import fr.techgp.nimbus.server.render.RenderStatic;
 import fr.techgp.nimbus.utils.IOUtils;
+import freemarker.template.Configuration;
 
 public class WebServerApplication {
 
@@ -61,27 +92,14 @@ public class WebServerApplication {
 			// Log start
 			if (logger.isInfoEnabled())
 				logger.info("Starting application...");
+			StartupReport report = new StartupReport();
 
-			// Load configuration files(s)
-			Properties properties = new Properties();
-			String[] pathParts = confPath.split(File.pathSeparator);
-			for (String pathPart : pathParts) {
-				File configFile = new File(pathPart);
-				if (configFile.exists()) {
-					try (FileInputStream fis = new FileInputStream(configFile)) {
-						properties.load(fis);
-					}
-				}
-			}
+			// Load configuration files(s) and prepare function to access configuration
+			BiFunction<String, String, String> settings = settings(loadConfiguration());
+			report.phase("configuration");
 
-			// Prepare function to access configuration
-			BiFunction<String, String, String> settings = (name, defaultValue) -> {
-				String s = System.getProperty(name);
-				return (s != null) ? s : properties.getProperty(name, defaultValue);
-			};
-
-			// Load MIME type detection
-			MimeTypes.loadDefaultMimeTypes();
+			// Load MIME type detection (default types are loaded on first lookup)
+			MimeTypes.loadDefaultMimeTypesLazily();
 			JettyServer.registerToMimeTypes();
 
 			// Port
@@ -93,50 +111,80 @@ public class WebServerApplication {
 			if (keystore != null)
 				server.https(keystore, settings.apply("server.keystore.password", null));
 
-			// Routes
-			Router router = new Router();
-			int i = 0;
-			String folder = settings.apply("static." + i + ".folder", null);
-			String prefix = settings.apply("static." + i + ".prefix", "");
-			while (folder != null) {
-				router.get(prefix + "/*", new StaticRessourceWithCache(prefix, folder));
-				i++;
-				folder = settings.apply("static." + i + ".folder", null);
-				prefix = settings.apply("static." + i + ".prefix", "");
+			// Optional asynchronous access log
+			String accessLog = settings.apply("server.accesslog", null);
+			if (accessLog != null) {
+				int capacity = Integer.parseInt(settings.apply("server.accesslog.capacity", "8192"));
+				long maxFileSize = Long.parseLong(settings.apply("server.accesslog.maxsize", Long.toString(10 * 1024 * 1024)));
+				int maxFiles = Integer.parseInt(settings.apply("server.accesslog.maxfiles", "5"));
+				server.accessLog(accessLog, capacity, maxFileSize, maxFiles);
 			}
 
-			// Some predefined features
-			if ("true".equals(settings.apply("utils.ping.enabled", null)))
-				router.get("/utils/ping", (req, resp) -> Render.string("pong"));
-			if ("true".equals(settings.apply("utils.ip.enabled", null)))
-				router.get("/utils/ip", (req, resp) -> Render.string(Utils.extractIPWithProxy(req)));
-			if ("true".equals(settings.apply("utils.mimetype.enabled", null)))
-				router.get("/utils/mimetype/:extension", new MimeType());
-			if ("true".equals(settings.apply("utils.moneyrates.enabled", null)))
-				router.get("/utils/moneyrates", new MoneyRates(settings));
-			if ("true".equals(settings.apply("utils.iblocklist.enabled", null)))
-				router.get("/utils/iblocklist", new IBlockList(settings));
-			if ("true".equals(settings.apply("utils.help.enabled", null)))
-				router.get("/utils/help", new Help(settings));
+			// Optional adaptive concurrency limit, answering "503 Service Unavailable" when overloaded
+			String limit = settings.apply("server.limit", null);
+			if (limit != null) {
+				int initialLimit = Integer.parseInt(limit);
+				int minLimit = Integer.parseInt(settings.apply("server.limit.min", "1"));
+				int maxLimit = Integer.parseInt(settings.apply("server.limit.max", Integer.toString(initialLimit * 10)));
+				long targetLatency = Long.parseLong(settings.apply("server.limit.latency", "500"));
+				double backoff = Double.parseDouble(settings.apply("server.limit.backoff", "0.9"));
+				int retryAfter = Integer.parseInt(settings.apply("server.limit.retryafter", "1"));
+				ConcurrencyLimiter limiter = new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, targetLatency, backoff, retryAfter);
+				// Health checks should still answer when the server is overloaded
+				limiter.exempt(Matcher.Path.is("/utils/ping"));
+				// The profiler waits for the whole profile, which should not cut the limit
+				limiter.exempt(Matcher.Path.is("/utils/profiler"));
+				server.limit(limiter);
+			}
 
-			// Check that requested path is safe
-			router.before("/*", (req, res) -> {
-				if (req.path().contains("..")) {
+			// Optional connection-level protections against slow or idle clients
+			int maxConnections = Integer.parseInt(settings.apply("server.maxconnections", "0"));
+			int lowResourcesIdleTimeout = Integer.parseInt(settings.apply("server.lowresources.idletimeout", "0"));
+			long maxMemory = Long.parseLong(settings.apply("server.lowresources.maxmemory", "0"));
+			long minRequestDataRate = Long.parseLong(settings.apply("server.mindatarate.request", "0"));
+			long minResponseDataRate = Long.parseLong(settings.apply("server.mindatarate.response", "0"));
+			if (maxConnections > 0 || lowResourcesIdleTimeout > 0 || minRequestDataRate > 0 || minResponseDataRate > 0)
+				server.protect(new ConnectionProtection(maxConnections, lowResourcesIdleTimeout, maxMemory, minRequestDataRate, minResponseDataRate));
+
+			// Optional request body size limit (static files only accept GET requests, so a small limit is usually enough)
+			String maxBodySize = settings.apply("server.maxbodysize", null);
+			if (maxBodySize != null)
+				server.maxBodySize(Long.parseLong(maxBodySize));
+
+			// Optional tracking of requests currently handled, used by the profiler and the slow request watchdog
+			boolean profilerEnabled = "true".equals(settings.apply("utils.profiler.enabled", null));
+			long slowThreshold = Long.parseLong(settings.apply("server.slowrequest.threshold", "0"));
+			if (profilerEnabled || slowThreshold > 0)
+				server.inflight(Integer.parseInt(settings.apply("server.inflight", "256")));
+			if (slowThreshold > 0) {
+				int history = Integer.parseInt(settings.apply("server.slowrequest.history", "20"));
+				server.watchdog(new SlowRequestWatchdog(server.getInflightRequests(), slowThreshold, history, (slow) -> {
 					if (logger.isWarnEnabled())
-						logger.warn("[" + req.ip() + "] " + HttpServletResponse.SC_FORBIDDEN + " : " + req.path());
-					return Render.forbidden();
-				}
-				return null;
-			});
+						logger.warn("Slow request : " + slow);
+				}).ignore("/utils/profiler"));
+			}
 
-			// Trace for requested URLs that do not exist
-			router.after("/*", (req, res) -> {
-				if (res.body() == null && logger.isWarnEnabled())
-					logger.warn("[" + req.ip() + "] " + HttpServletResponse.SC_NOT_FOUND + " : " + req.path());
-				else if (logger.isTraceEnabled())
-					logger.trace("[" + req.ip() + "] " + (res.body() == null ? HttpServletResponse.SC_NOT_FOUND : res.status()) + " : " + req.path());
-				return null;
-			});
+			// Optional metrics, exported on "/utils/metrics"
+			Metrics metrics = "true".equals(settings.apply("utils.metrics.enabled", null)) ? new Metrics().jvm() : null;
+			if (metrics != null)
+				server.metrics(metrics);
+
+			report.phase("server");
+
+			// Optional FreeMarker templates, parsed before the first request
+			String templates = settings.apply("freemarker.folder", null);
+			if (templates != null) {
+				int count = precompileTemplates(new File(templates), settings, metrics);
+				report.phase("templates");
+				if (logger.isInfoEnabled())
+					logger.info(count + " FreeMarker templates precompiled in " + templates);
+			}
+
+			// Routes
+			Map<String, Object> components = new HashMap<>();
+			Router router = createRouter(settings, server, metrics, Collections.emptyMap(), components);
+
+			report.phase("routes");
 
 			// Prepare "pid" file
 			// String pid = new File("/proc/self").getCanonicalFile().getName(); // (linux only, all jvm)
@@ -145,10 +193,29 @@ public class WebServerApplication {
 				os.write(pid.getBytes());
 			}
 
+			// Optional JIT warm-up, before the connector is opened
+			if ("true".equals(settings.apply("server.warmup", null))) {
+				WarmUp warmUp = new WarmUp();
+				for (String path : settings.apply("server.warmup.paths", "/").split(",")) {
+					if (!path.isBlank())
+						warmUp.request("GET", path.trim());
+				}
+				long maxDuration = Long.parseLong(settings.apply("server.warmup.maxduration", "10000"));
+				long maxRequests = Long.parseLong(settings.apply("server.warmup.maxrequests", "1000000"));
+				server.warmUp(warmUp.limits(maxDuration, maxRequests));
+			}
+
 			// Log started
 			server.start(router);
+			report.phase(server.getWarmUpReport() != null ? "warm-up and jetty" : "jetty");
+			if (server.getWarmUpReport() != null && logger.isInfoEnabled())
+				logger.info("Warm-up completed : " + server.getWarmUpReport());
 			if (logger.isInfoEnabled())
-				logger.info("Application started on " + (keystore != null ? "HTTPS" : "HTTP") + " port " + port + " with PID " + pid);
+				logger.info("Application started on " + (keystore != null ? "HTTPS" : "HTTP") + " port " + port + " with PID " + pid + " " + report);
+
+			// Optional reload of routes when configuration changes (server settings still require a restart)
+			if ("true".equals(settings.apply("server.reload", null)))
+				watchConfiguration(server, metrics, components);
 		} catch (Exception ex) {
 			// Log fatal error
 			if (logger.isErrorEnabled())
@@ -156,11 +223,357 @@ public class WebServerApplication {
 		}
 	}
 
+	/** prépare la configuration FreeMarker par défaut pour "folder" et analyse ses templates, en séparant cette méthode pour ne charger FreeMarker que si besoin */
+	private static final int precompileTemplates(File folder, BiFunction<String, String, String> settings, Metrics metrics) throws IOException {
+		int strongCacheSize = Integer.parseInt(settings.apply("freemarker.cache.strong", "100"));
+		int softCacheSize = Integer.parseInt(settings.apply("freemarker.cache.soft", Integer.toString(Integer.MAX_VALUE)));
+		long updateDelay = Long.parseLong(settings.apply("freemarker.updatedelay", "5000"));
+		Configuration configuration = RenderFreeMarker.createConfiguration(folder, strongCacheSize, softCacheSize, updateDelay);
+		int fragments = Integer.parseInt(settings.apply("freemarker.fragments", "0"));
+		FreeMarkerFragmentCache cache = null;
+		if (fragments > 0) {
+			cache = new FreeMarkerFragmentCache(fragments, Long.parseLong(settings.apply("freemarker.fragments.ttl", "60"))).register(configuration);
+			if (metrics != null)
+				cache.metrics(metrics);
+		}
+		int count = RenderFreeMarker.precompile(configuration, folder);
+		RenderFreeMarker.defaultConfiguration(configuration);
+		// Le cache reste accessible pour invalider les fragments quand leurs données changent
+		RenderFreeMarker.defaultFragments(cache);
+		return count;
+	}
+
+	/** construit les routes à partir de la configuration, en réutilisant les composants de "previous" qui n'ont pas changé */
+	private static final Router createRouter(BiFunction<String, String, String> settings, JettyServer server, Metrics metrics,
+			Map<String, Object> previous, Map<String, Object> components) {
+		Router router = new Router();
+		int i = 0;
+
+		// Optional reverse proxies, before static folders that may use the same prefix
+		String prefix = settings.apply("proxy." + i + ".prefix", null);
+		while (prefix != null) {
+			String url = settings.apply("proxy." + i + ".url", null);
+			long timeout = Long.parseLong(settings.apply("proxy." + i + ".timeout", Long.toString(ReverseProxy.RESPONSE_TIMEOUT.toMillis())));
+			long idleTimeout = Long.parseLong(settings.apply("proxy." + i + ".idletimeout", Long.toString(ReverseProxy.BODY_IDLE_TIMEOUT.toMillis())));
+			ReverseProxy proxy = new ReverseProxy(prefix, url, ReverseProxy.defaultClient(), Duration.ofMillis(timeout), Duration.ofMillis(idleTimeout));
+			if (metrics != null)
+				proxy.metrics(metrics);
+			router.proxy(proxy);
+			i++;
+			prefix = settings.apply("proxy." + i + ".prefix", null);
+		}
+
+		i = 0;
+		String folder = settings.apply("static." + i + ".folder", null);
+		prefix = settings.apply("static." + i + ".prefix", "");
+		while (folder != null) {
+			String p = prefix, f = folder;
+			boolean precompress = "true".equals(settings.apply("static." + i + ".precompress", null));
+			boolean indexed = "true".equals(settings.apply("static." + i + ".index", null));
+			long cacheSize = Long.parseLong(settings.apply("static." + i + ".cache", "0"));
+			long cacheFileSize = Long.parseLong(settings.apply("static." + i + ".cache.maxfilesize", "65536"));
+			String key = "static " + prefix + " " + folder + " " + precompress + " " + indexed + " " + cacheSize + " " + cacheFileSize;
+			router.get(prefix + "/*", reuse(previous, components, key, () -> {
+				// Compresser les fichiers texte une seule fois en tâche de fond, plutôt qu'à chaque requête
+				if (precompress) {
+					Thread thread = new Thread(() -> precompress(new File(f)), "nimbus-precompress");
+					thread.setDaemon(true);
+					thread.start();
+				}
+				try {
+					return new StaticRessourceWithCache(p, f, indexed, cacheSize, cacheFileSize, metrics);
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			}));
+			i++;
+			folder = settings.apply("static." + i + ".folder", null);
+			prefix = settings.apply("static." + i + ".prefix", "");
+		}
+
+		// Some predefined features
+		if ("true".equals(settings.apply("utils.ping.enabled", null))) {
+			// Réponse constante, encodée une seule fois
+			Render pong = Render.freeze(Render.string("pong"));
+			router.get("/utils/ping", (req, resp) -> pong);
+		}
+		if ("true".equals(settings.apply("utils.ip.enabled", null)))
+			router.get("/utils/ip", (req, resp) -> Render.string(Utils.extractIPWithProxy(req)));
+		if ("true".equals(settings.apply("utils.mimetype.enabled", null)))
+			router.get("/utils/mimetype/:extension", new MimeType());
+		if ("true".equals(settings.apply("utils.moneyrates.enabled", null)))
+			router.get("/utils/moneyrates", new MoneyRates(settings));
+		if ("true".equals(settings.apply("utils.iblocklist.enabled", null))) {
+			// La liste est conservée lors d'un rechargement si sa configuration n'a pas changé
+			StringBuilder key = new StringBuilder("iblocklist");
+			for (String name : new String[] { "file", "interval", "enforce", "trustedproxies" }) {
+				key.append(' ').append(settings.apply("utils.iblocklist." + name, null));
+			}
+			for (int index = 0; settings.apply("utils.iblocklist." + index, null) != null; index++) {
+				key.append(' ').append(settings.apply("utils.iblocklist." + index, null));
+			}
+			boolean enforce = "true".equals(settings.apply("utils.iblocklist.enforce", null));
+			IBlockList iblocklist = reuse(previous, components, key.toString(), () -> {
+				IBlockList l = new IBlockList(settings);
+				if (enforce)
+					l.enforce();
+				return l;
+			});
+			router.get("/utils/iblocklist", iblocklist);
+			// Block listed IP addresses, before any other filter
+			if (enforce)
+				router.before("/*", iblocklist::filter);
+		}
+		if ("true".equals(settings.apply("utils.help.enabled", null)))
+			router.get("/utils/help", new Help(settings));
+		if (metrics != null) {
+			router.get("/utils/metrics", (req, res) -> {
+				res.type(Metrics.CONTENT_TYPE);
+				return Render.string(metrics.export());
+			});
+		}
+		if (server.getInflightRequests() != null && "true".equals(settings.apply("utils.profiler.enabled", null))) {
+			// Le profileur est conservé lors d'un rechargement, pour qu'un seul profil s'exécute à la fois
+			SamplingProfiler profiler = reuse(previous, components, "profiler", () -> new SamplingProfiler(server.getInflightRequests()));
+			router.before("/utils/profiler", new AdminOnly(settings));
+			router.get("/utils/profiler", (req, res) -> {
+				long seconds = req.queryParameterLong("seconds", 10);
+				long interval = req.queryParameterLong("interval", 10);
+				String stacks = profiler.profile(seconds * 1000, interval);
+				if (stacks == null)
+					return Render.conflict();
+				res.type("text/plain; charset=utf-8");
+				return Render.string(stacks);
+			});
+		}
+		if (server.getWatchdog() != null && "true".equals(settings.apply("utils.slowrequests.enabled", null))) {
+			SlowRequestWatchdog watchdog = server.getWatchdog();
+			router.before("/utils/slowrequests", new AdminOnly(settings));
+			router.get("/utils/slowrequests", (req, res) -> {
+				StringBuilder sb = new StringBuilder();
+				for (SlowRequestWatchdog.SlowRequest slow : watchdog.getHistory()) {
+					sb.append(Instant.ofEpochMilli(slow.getTimestamp())).append(' ').append(slow).append("\n\n");
+				}
+				res.type("text/plain; charset=utf-8");
+				return Render.string(sb.toString());
+			});
+		}
+
+		// Optional rate limits, by path prefix and by client
+		if (settings.apply("ratelimit.0.prefix", null) != null) {
+			int stripes = Integer.parseInt(settings.apply("ratelimit.stripes", "16"));
+			int maxKeys = Integer.parseInt(settings.apply("ratelimit.maxkeys", "1024"));
+			boolean session = "session".equals(settings.apply("ratelimit.key", "ip"));
+			RateLimitFilter filter = new RateLimitFilter(session ? RateLimitFilter.SESSION_OR_IP : RateLimitFilter.IP, stripes, maxKeys);
+			i = 0;
+			prefix = settings.apply("ratelimit." + i + ".prefix", null);
+			while (prefix != null) {
+				int capacity = Integer.parseInt(settings.apply("ratelimit." + i + ".capacity", "20"));
+				double rate = Double.parseDouble(settings.apply("ratelimit." + i + ".rate", "5"));
+				filter.rule(prefix, capacity, rate);
+				i++;
+				prefix = settings.apply("ratelimit." + i + ".prefix", null);
+			}
+			router.before("/*", filter);
+		}
+
+		// Check that requested path is safe
+		router.before("/*", (req, res) -> {
+			if (req.path().contains("..")) {
+				if (logger.isWarnEnabled())
+					logger.warn("[" + req.ip() + "] " + HttpServletResponse.SC_FORBIDDEN + " : " + req.path());
+				return Render.forbidden();
+			}
+			return null;
+		});
+
+		// Trace for requested URLs that do not exist (unless the access log already traces every request)
+		if (server.getAccessLog() == null) {
+			router.after("/*", (req, res) -> {
+				if (res.body() == null && logger.isWarnEnabled())
+					logger.warn("[" + req.ip() + "] " + HttpServletResponse.SC_NOT_FOUND + " : " + req.path());
+				else if (logger.isTraceEnabled())
+					logger.trace("[" + req.ip() + "] " + (res.body() == null ? HttpServletResponse.SC_NOT_FOUND : res.status()) + " : " + req.path());
+				return null;
+			});
+		}
+
+		return router;
+	}
+
+	/** crée ou met à jour les fichiers "fichier.ext.gz" des fichiers texte de "folder", utilisés par {@link RenderStatic} si le client accepte gzip */
+	private static final void precompress(File folder) {
+		long start = System.currentTimeMillis();
+		int count = 0;
+		try (Stream<Path> paths = Files.walk(folder.toPath())) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				File file = path.toFile();
+				String name = file.getName();
+				if (!file.isFile() || name.endsWith(".gz") || file.length() < 1024 || RenderStatic.precompressed(file) != null)
+					continue;
+				String mimetype = (name.indexOf('.') == -1 || name.endsWith(".")) ? null : MimeTypes.byName(name);
+				if (mimetype == null || !(mimetype.startsWith("text/") || mimetype.contains("json") || mimetype.contains("javascript") || mimetype.contains("xml")))
+					continue;
+				// Ecrire dans un fichier temporaire, puis le renommer pour ne jamais servir un fichier incomplet
+				File gz = new File(file.getPath() + ".gz");
+				File tmp = new File(file.getPath() + ".gz.tmp");
+				try {
+					try (InputStream is = new FileInputStream(file); OutputStream os = new GZIPOutputStream(new FileOutputStream(tmp))) {
+						IOUtils.copy(is, os, new byte[64 * 1024]);
+					}
+					// Inutile de conserver une version compressée qui ne serait pas plus petite
+					if (tmp.length() >= file.length()) {
+						tmp.delete();
+						continue;
+					}
+					Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					count++;
+				} catch (IOException ex) {
+					tmp.delete();
+					if (logger.isWarnEnabled())
+						logger.warn("Precompression failed for " + file.getAbsolutePath(), ex);
+				}
+			}
+		} catch (IOException | RuntimeException ex) {
+			if (logger.isErrorEnabled())
+				logger.error("Precompression failed in " + folder.getAbsolutePath(), ex);
+		}
+		if (logger.isInfoEnabled())
+			logger.info("Precompressed " + count + " files in " + folder.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms.");
+	}
+
+	/** retourne le composant "key" de "previous" s'il existe, ou en crée un nouveau, et le mémorise dans "current" */
+	@SuppressWarnings("unchecked")
+	private static final <T> T reuse(Map<String, Object> previous, Map<String, Object> current, String key, Supplier<T> supplier) {
+		T component = (T) previous.get(key);
+		if (component == null)
+			component = supplier.get();
+		current.put(key, component);
+		return component;
+	}
+
+	/** recharge la configuration à chaque modification des fichiers, et remplace les routes du serveur sans l'arrêter */
+	private static final void watchConfiguration(JettyServer server, Metrics metrics, Map<String, Object> initialComponents) throws IOException {
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		Set<Path> files = new HashSet<>();
+		for (String pathPart : confPath.split(File.pathSeparator)) {
+			Path file = Paths.get(pathPart).toAbsolutePath();
+			files.add(file);
+			if (Files.isDirectory(file.getParent()))
+				file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		}
+		Thread thread = new Thread(() -> {
+			Map<String, Object> components = initialComponents;
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					// Attendre une modification d'un des fichiers de configuration
+					WatchKey key = watcher.take();
+					boolean changed = false;
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.context() instanceof Path && files.contains(((Path) key.watchable()).resolve((Path) event.context())))
+							changed = true;
+					}
+					key.reset();
+					if (!changed)
+						continue;
+					// Laisser l'éditeur terminer l'écriture, en ignorant les événements suivants
+					Thread.sleep(500);
+					for (WatchKey k = watcher.poll(); k != null; k = watcher.poll()) {
+						k.pollEvents();
+						k.reset();
+					}
+					// Construire les nouvelles routes puis les publier de manière atomique
+					Properties properties = loadConfiguration();
+					Map<String, Object> reloaded = new HashMap<>();
+					Router router = createRouter(settings(properties), server, metrics, components, reloaded);
+					server.router(router);
+					// Libérer les composants qui ne sont plus utilisés
+					for (Map.Entry<String, Object> entry : components.entrySet()) {
+						if (reloaded.get(entry.getKey()) != entry.getValue() && entry.getValue() instanceof AutoCloseable)
+							((AutoCloseable) entry.getValue()).close();
+					}
+					components = reloaded;
+					if (logger.isInfoEnabled())
+						logger.info("Configuration reloaded with " + router.routeNames().size() + " routes.");
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				} catch (Exception ex) {
+					// Conserver les routes actuelles en cas d'erreur
+					if (logger.isErrorEnabled())
+						logger.error("Configuration reload failed, previous routes are kept.", ex);
+				}
+			}
+		}, "nimbus-configuration-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** charge le ou les fichiers de configuration */
+	private static final Properties loadConfiguration() throws IOException {
+		Properties properties = new Properties();
+		String[] pathParts = confPath.split(File.pathSeparator);
+		for (String pathPart : pathParts) {
+			File configFile = new File(pathPart);
+			if (configFile.exists()) {
+				try (FileInputStream fis = new FileInputStream(configFile)) {
+					properties.load(fis);
+				}
+			}
+		}
+		return properties;
+	}
+
+	/** prépare la fonction d'accès à la configuration, les propriétés système étant prioritaires */
+	private static final BiFunction<String, String, String> settings(Properties properties) {
+		return (name, defaultValue) -> {
+			String s = System.getProperty(name);
+			return (s != null) ? s : properties.getProperty(name, defaultValue);
+		};
+	}
+
+	private static final class StartupReport {
+
+		private final long start = System.nanoTime();
+		private long last = this.start;
+		private final StringBuilder phases = new StringBuilder();
+
+		/** termine une phase du démarrage et mémorise sa durée */
+		public void phase(String name) {
+			long now = System.nanoTime();
+			if (this.phases.length() > 0)
+				this.phases.append(", ");
+			this.phases.append(name).append(' ').append(TimeUnit.NANOSECONDS.toMillis(now - this.last)).append(" ms");
+			this.last = now;
+		}
+
+		@Override
+		public String toString() {
+			// La durée depuis le démarrage de la JVM inclut le chargement des classes avant "main"
+			return "in " + TimeUnit.NANOSECONDS.toMillis(this.last - this.start) + " ms (" + this.phases + ")"
+					+ ", " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after JVM start";
+		}
+
+	}
+
 	private static final class Help implements Route {
 
-		private String content;
+		private final BiFunction<String, String, String> settings;
+		private volatile Render content;
 
 		public Help(BiFunction<String, String, String> settings) {
+			// La page est construite à la première demande, pour ne pas ralentir le démarrage
+			this.settings = settings;
+		}
+
+		@Override
+		public Render handle(Request request, Response response) {
+			Render content = this.content;
+			if (content == null)
+				this.content = content = Render.freeze(Render.string(build(this.settings)));
+			return content;
+		}
+
+		private static String build(BiFunction<String, String, String> settings) {
 			StringBuilder sb = new StringBuilder();
 			int i = 0;
 			String folder = settings.apply("static." + i + ".folder", null);
@@ -186,14 +599,39 @@ public class WebServerApplication {
 				sb.append("<a href=\"/utils/moneyrates\">/utils/moneyrates</a> returns € currency conversion as JSON<br />");
 			if ("true".equals(settings.apply("utils.iblocklist.enabled", null)))
 				sb.append("<a href=\"/utils/iblocklist\">/utils/iblocklist</a> merges some iblocklist<br />");
+			if ("true".equals(settings.apply("utils.metrics.enabled", null)))
+				sb.append("<a href=\"/utils/metrics\">/utils/metrics</a> returns server metrics in Prometheus format<br />");
+			if ("true".equals(settings.apply("utils.profiler.enabled", null)))
+				sb.append("<a href=\"/utils/profiler?seconds=10\">/utils/profiler?seconds=10</a> profiles requests and returns collapsed stacks<br />");
+			if (!"0".equals(settings.apply("server.slowrequest.threshold", "0")) && "true".equals(settings.apply("utils.slowrequests.enabled", null)))
+				sb.append("<a href=\"/utils/slowrequests\">/utils/slowrequests</a> returns the last slow requests with their stack<br />");
 			if ("true".equals(settings.apply("utils.help.enabled", null)))
 				sb.append("<a href=\"/utils/help\">/utils/help</a> is this page<br />");
-			this.content = sb.toString();
+			return sb.toString();
+		}
+
+	}
+
+	private static final class AdminOnly implements Route {
+
+		private final Set<String> allowed = new HashSet<>();
+
+		public AdminOnly(BiFunction<String, String, String> settings) {
+			// Par défaut, seules les requêtes locales sont autorisées
+			for (String ip : settings.apply("utils.admin.allowed", "127.0.0.1,0:0:0:0:0:0:0:1,::1").split(",")) {
+				if (!ip.isBlank())
+					this.allowed.add(ip.trim());
+			}
 		}
 
 		@Override
 		public Render handle(Request request, Response response) {
-			return Render.string(this.content);
+			if (this.allowed.contains(request.ip()))
+				return null;
+			// Le préchauffage passe par ici sans que ce soit une tentative d'accès
+			if (logger.isWarnEnabled() && !WarmUp.isWarmUp(request))
+				logger.warn("[" + request.ip() + "] " + HttpServletResponse.SC_FORBIDDEN + " : " + request.path());
+			return Render.forbidden();
 		}
 
 	}
@@ -271,18 +709,27 @@ public class WebServerApplication {
 		}
 	}
 
-	private static final class IBlockList implements Route {
+	private static final class IBlockList implements Route, AutoCloseable {
 
 		private final List<String> urls;
 		private final File file;
 		private final long refreshInterval;
+		/** les adresses des proxies dont les en-têtes "X-Real-IP" et "X-Forwarded-For" sont fiables */
+		private final Set<String> trustedProxies;
 		private long refreshTime = 0;
+		private volatile IPRangeIndex index = IPRangeIndex.EMPTY;
+		private ScheduledExecutorService executor = null;
 
 		public IBlockList(BiFunction<String, String, String> settings) {
 			super();
 			this.urls = new ArrayList<>();
 			this.file = new File(settings.apply("utils.iblocklist.file", "iblocklist.txt.gz"));
 			this.refreshInterval = Integer.parseInt(settings.apply("utils.iblocklist.interval", "1")) * 24 * 60 * 60 * 1000;
+			this.trustedProxies = new HashSet<>();
+			for (String proxy : settings.apply("utils.iblocklist.trustedproxies", "").split(",")) {
+				if (!proxy.isBlank())
+					this.trustedProxies.add(proxy.trim());
+			}
 			int index = 0;
 			while (settings.apply("utils.iblocklist." + index, null) != null) {
 				this.urls.add(settings.apply("utils.iblocklist." + index, null));
@@ -290,8 +737,54 @@ public class WebServerApplication {
 			}
 		}
 
+		/** charge la liste existante puis la raffraichit régulièrement en tâche de fond, pour que {@link IBlockList#filter} bloque les IP listées */
+		public void enforce() {
+			this.executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+				Thread thread = new Thread(r, "nimbus-iblocklist");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.executor.execute(() -> {
+				// Réutiliser le fichier existant s'il est encore valide
+				synchronized (this) {
+					if (this.file.exists() && (System.currentTimeMillis() - this.file.lastModified()) < this.refreshInterval) {
+						this.refreshTime = this.file.lastModified();
+						this.reloadIndex();
+					}
+				}
+			});
+			this.executor.scheduleWithFixedDelay(this::refreshIfNeeded, 0, 1, TimeUnit.HOURS);
+		}
+
+		/** arrête le raffraichissement en tâche de fond, quand la liste n'est plus utilisée après un rechargement */
+		@Override
+		public void close() {
+			if (this.executor != null)
+				this.executor.shutdownNow();
+		}
+
+		/** rejette les requêtes dont l'IP est bloquée, avant tout routage */
+		public Render filter(Request request, Response response) {
+			// Les en-têtes de proxy sont choisis par le client, sauf derrière un proxy de confiance
+			String ip = this.trustedProxies.contains(request.ip()) ? Utils.extractIPWithProxy(request) : request.ip();
+			// "0.0.0.0", utilisée pour le préchauffage, fait partie des plages réservées souvent bloquées
+			if (!this.index.contains(ip) || WarmUp.isWarmUp(request))
+				return null;
+			if (logger.isTraceEnabled())
+				logger.trace("[" + ip + "] " + HttpServletResponse.SC_FORBIDDEN + " : " + request.path() + " (iblocklist)");
+			return Render.forbidden();
+		}
+
 		@Override
 		public Render handle(Request request, Response response) throws Exception {
+			if (!this.refreshIfNeeded())
+				return Render.internalServerError();
+			// Renvoyer le résultat du fichier concaténé
+			return Render.file(this.file, "application/x-gzip", this.file.getName(), false, false);
+		}
+
+		/** télécharge à nouveau les listes si nécessaire, puis met à jour l'index en mémoire */
+		private synchronized boolean refreshIfNeeded() {
 			try {
 				// Attendre une journée entre chaque raffraichissement
 				if ((System.currentTimeMillis() - this.refreshTime) > this.refreshInterval) {
@@ -310,32 +803,59 @@ public class WebServerApplication {
 					}
 					if (logger.isInfoEnabled())
 						logger.info("[iblocklist] Refresh completed.");
+					this.reloadIndex();
 				}
-
-				// Renvoyer le résultat du fichier concaténé
-				return Render.file(this.file, "application/x-gzip", this.file.getName(), false, false);
+				return true;
 
 			} catch (IOException ex) {
-				// Annuler
+				// Annuler (en conservant le dernier index chargé)
 				this.file.delete();
 				this.refreshTime = 0;
 				// Tracer
 				if (logger.isErrorEnabled())
 					logger.error("[iblocklist] Unexpected error while refreshing.", ex);
-				// Retour
-				return Render.internalServerError();
+				return false;
+			}
+		}
+
+		/** construit un nouvel index à partir du fichier et le remplace de manière atomique */
+		private void reloadIndex() {
+			try (Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(this.file)), StandardCharsets.ISO_8859_1)) {
+				IPRangeIndex newIndex = IPRangeIndex.load(reader);
+				this.index = newIndex;
+				if (logger.isInfoEnabled())
+					logger.info("[iblocklist] Index loaded with " + newIndex.sizeIPv4() + " IPv4 range(s) and " + newIndex.sizeIPv6() + " IPv6 range(s).");
+			} catch (IOException ex) {
+				if (logger.isErrorEnabled())
+					logger.error("[iblocklist] Unexpected error while loading index.", ex);
 			}
 		}
 	}
 
-	private static final class StaticRessourceWithCache implements Route {
+	private static final class StaticRessourceWithCache implements Route, AutoCloseable {
 
 		private final String prefix;
 		private final File folder;
+		private final StaticFolderIndex index;
+		private final StaticFileCache cache;
 
-		public StaticRessourceWithCache(String prefix, String folder) {
+		public StaticRessourceWithCache(String prefix, String folder, boolean indexed, long cacheSize, long cacheFileSize, Metrics metrics) throws IOException {
 			this.prefix = prefix;
 			this.folder = new File(folder);
+			// Le cache s'appuie sur l'index pour savoir quand un fichier a changé
+			this.index = indexed || cacheSize > 0 ? new StaticFolderIndex(this.folder).start() : null;
+			this.cache = cacheSize > 0 ? new StaticFileCache(cacheSize, cacheFileSize) : null;
+			if (this.cache != null && metrics != null)
+				this.cache.metrics(metrics, prefix);
+		}
+
+		/** arrête la surveillance du dossier, quand les routes ne l'utilisent plus après un rechargement */
+		@Override
+		public void close() {
+			if (this.index != null)
+				this.index.close();
+			if (this.cache != null)
+				this.cache.clear();
 		}
 
 		@Override
@@ -343,6 +863,17 @@ public class WebServerApplication {
 			// Récupérer le chemin demandé
 			String path = request.path();
 			try {
+				// Avec l'index, les fichiers existants comme absents sont trouvés sans accès disque
+				if (this.index != null) {
+					StaticFolderIndex.Metadata metadata = this.index.get(path.substring(this.prefix.length()));
+					if (metadata == null)
+						return null;
+					// Les petits fichiers en mémoire sont renvoyés directement (sauf demande de plages)
+					if (this.cache != null && request.header("Range") == null)
+						return this.cache.render(metadata);
+					return Render.staticFile(metadata.getFile(), metadata.getMimeType());
+				}
+
 				// Récupérer le fichier associé
 				File file = new File(this.folder, path.substring(this.prefix.length()));
 
@@ -0,0 +1,34 @@
+package fr.techgp.nimbus.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * This JFR event covers the decoding or encoding of a client session (JWT in a cookie).
+ */
+@Name("fr.techgp.nimbus.ClientSession")
+@Label("Client Session")
+@Description("Client session decoded from or encoded to a cookie")
+@Category({ "Nimbus", "Session" })
+@Enabled(false)
+@StackTrace(false)
+public class ClientSessionEvent extends jdk.jfr.Event {
+
+	public static final String DECODE = "decode";
+	public static final String ENCODE = "encode";
+
+	@Label("Operation")
+	public String operation;
+
+	@Label("Path")
+	public String path;
+
+	@Label("Found")
+	@Description("True if a session was decoded or encoded")
+	public boolean found;
+
+}
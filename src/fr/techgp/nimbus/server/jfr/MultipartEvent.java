@@ -0,0 +1,32 @@
+package fr.techgp.nimbus.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * This JFR event covers the parsing of a "multipart/form-data" request body.
+ */
+@Name("fr.techgp.nimbus.Multipart")
+@Label("Multipart Parsing")
+@Description("Parsing of a multipart/form-data request body")
+@Category({ "Nimbus", "HTTP" })
+@Enabled(false)
+@StackTrace(false)
+public class MultipartEvent extends jdk.jfr.Event {
+
+	@Label("Path")
+	public String path;
+
+	@Label("Content Length")
+	@DataAmount
+	public long contentLength;
+
+	@Label("Parts")
+	public int parts;
+
+}
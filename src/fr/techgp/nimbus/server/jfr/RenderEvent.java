@@ -0,0 +1,37 @@
+package fr.techgp.nimbus.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * This JFR event covers the rendering of the response body.
+ *
+ * @see fr.techgp.nimbus.server.Render
+ */
+@Name("fr.techgp.nimbus.Render")
+@Label("Render")
+@Description("Rendering of the response body")
+@Category({ "Nimbus", "HTTP" })
+@Enabled(false)
+@StackTrace(false)
+public class RenderEvent extends jdk.jfr.Event {
+
+	@Label("Path")
+	public String path;
+
+	@Label("Render Class")
+	public Class<?> renderClass;
+
+	@Label("Status")
+	public int status;
+
+	@Label("Bytes Written")
+	@DataAmount
+	public long bytes;
+
+}
@@ -0,0 +1,53 @@
+package fr.techgp.nimbus.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * This JFR event covers a whole request, with the matching route, the status and the time spent in each phase.
+ *
+ * @see fr.techgp.nimbus.server.Trace
+ */
+@Name("fr.techgp.nimbus.Request")
+@Label("Request")
+@Description("HTTP request handled by the router")
+@Category({ "Nimbus", "HTTP" })
+@Enabled(false)
+@StackTrace(false)
+public class RequestEvent extends jdk.jfr.Event {
+
+	@Label("Method")
+	public String method;
+
+	@Label("Path")
+	public String path;
+
+	@Label("Route")
+	@Description("The route that provided the response body")
+	public String route;
+
+	@Label("Status")
+	public int status;
+
+	@Label("Before Filters")
+	@Timespan(Timespan.NANOSECONDS)
+	public long before;
+
+	@Label("Handler")
+	@Timespan(Timespan.NANOSECONDS)
+	public long handler;
+
+	@Label("After Filters")
+	@Timespan(Timespan.NANOSECONDS)
+	public long after;
+
+	@Label("Render")
+	@Timespan(Timespan.NANOSECONDS)
+	public long render;
+
+}
@@ -0,0 +1,196 @@
+package fr.techgp.nimbus.server.render;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import javax.servlet.http.HttpServletResponse;
+
+import fr.techgp.nimbus.server.Request;
+import fr.techgp.nimbus.server.Response;
+
+/**
+ * <p>This class answers "Range" requests for files, as defined in RFC 7233 :</p>
+ * <ul>
+ * <li>a single range is sent as "206 Partial Content" with a "Content-Range" header</li>
+ * <li>multiple ranges are sorted and overlapping or adjacent ones are merged, so that no byte is sent twice (CVE-2011-3192)</li>
+ * <li>multiple ranges are sent as "206 Partial Content" with a "multipart/byteranges" body</li>
+ * <li>unsatisfiable ranges answer "416 Range Not Satisfiable"</li>
+ * <li>"If-Range" is compared to the ETag or Last-Modified date, the whole file being sent if it does not match</li>
+ * </ul>
+ *
+ * <p>Each range is read at it's position in the file, using {@link RenderFile#transfer(FileChannel, long, long, OutputStream, boolean)}.</p>
+ */
+final class ByteRanges {
+
+	/** the maximum number of ranges in a request, the whole file being sent above */
+	public static final int MAX_RANGES = 16;
+
+	private ByteRanges() {
+		//
+	}
+
+	/**
+	 * sends the requested ranges of "file", if any, after setting the "Accept-Ranges" header
+	 *
+	 * @param etag the ETag of the file, or null if none
+	 * @param lastModified the modification date of the file, or -1 if not sent to the client
+	 * @return false if the whole file should be sent instead (no "Range", invalid "Range" or "If-Range" not matching)
+	 */
+	public static boolean send(Request request, Response response, File file, String mimeType, String etag, long lastModified,
+			Supplier<OutputStream> stream) throws IOException {
+		response.header("Accept-Ranges", "bytes");
+		String range = request.header("Range");
+		if (range == null || !"GET".equals(request.method()) || !matchesIfRange(request, etag, lastModified))
+			return false;
+
+		long size = file.length();
+		List<long[]> ranges = parse(range, size);
+		if (ranges == null)
+			return false;
+
+		// No range overlaps the file
+		if (ranges.isEmpty()) {
+			response.status(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.header("Content-Range", "bytes */" + size);
+			response.length(0);
+			try (OutputStream os = stream.get()) {
+				os.flush();
+			}
+			return true;
+		}
+
+		response.status(HttpServletResponse.SC_PARTIAL_CONTENT);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// Single range : the body is the part itself
+			if (ranges.size() == 1) {
+				long[] r = ranges.get(0);
+				response.header("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + size);
+				response.length(r[1] - r[0] + 1);
+				try (OutputStream os = stream.get()) {
+					RenderFile.transfer(channel, r[0], r[1] - r[0] + 1, os, true);
+				}
+				return true;
+			}
+
+			// Multiple ranges : each part has it's own headers, and the length is known beforehand
+			String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+			String partType = mimeType != null ? mimeType : "application/octet-stream";
+			byte[][] headers = new byte[ranges.size()][];
+			byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+			long length = end.length;
+			for (int i = 0; i < ranges.size(); i++) {
+				long[] r = ranges.get(i);
+				headers[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + partType + "\r\nContent-Range: bytes " + r[0] + "-" + r[1] + "/" + size + "\r\n\r\n")
+						.getBytes(StandardCharsets.US_ASCII);
+				length += headers[i].length + r[1] - r[0] + 1;
+			}
+			response.type("multipart/byteranges; boundary=" + boundary);
+			response.length(length);
+			try (OutputStream os = stream.get()) {
+				for (int i = 0; i < ranges.size(); i++) {
+					long[] r = ranges.get(i);
+					os.write(headers[i]);
+					RenderFile.transfer(channel, r[0], r[1] - r[0] + 1, os, true);
+				}
+				os.write(end);
+			}
+			return true;
+		}
+	}
+
+	/** returns true if there is no "If-Range" header, or if it matches the ETag or the modification date (with a 1 s precision) */
+	private static boolean matchesIfRange(Request request, String etag, long lastModified) {
+		String ifRange = request.header("If-Range");
+		if (ifRange == null)
+			return true;
+		if (etag != null && (ifRange.equals(etag) || ifRange.equals("\"" + etag + "\"")))
+			return true;
+		// Another (or a weak) ETag
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return false;
+		if (lastModified == -1)
+			return false;
+		try {
+			return request.dateHeader("If-Range") / 1000 == lastModified / 1000;
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * parses a "Range" header such as <code>bytes=0-499,1000-,-500</code> for a file of "size" bytes
+	 *
+	 * @return the satisfiable ranges, as sorted and merged inclusive [first, last] positions, an empty list if none is satisfiable,
+	 * or null if the header should be ignored (other unit, invalid syntax or too many ranges)
+	 */
+	static List<long[]> parse(String header, long size) {
+		if (!header.startsWith("bytes="))
+			return null;
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+		List<long[]> ranges = new ArrayList<>(specs.length);
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if (dash == -1)
+					return null;
+				String first = spec.substring(0, dash).trim();
+				String last = spec.substring(dash + 1).trim();
+				long start, end;
+				if (first.isEmpty()) {
+					// Suffix range : the last "n" bytes
+					long n = Long.parseLong(last);
+					if (n < 0)
+						return null;
+					if (n == 0 || size == 0)
+						continue;
+					start = Math.max(0, size - n);
+					end = size - 1;
+				} else {
+					start = Long.parseLong(first);
+					end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+					if (start < 0 || end < start)
+						return null;
+					if (start >= size)
+						continue;
+					end = Math.min(end, size - 1);
+				}
+				ranges.add(new long[] { start, end });
+			}
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+		return merge(ranges);
+	}
+
+	/** sorts "ranges" and merges the overlapping or adjacent ones */
+	private static List<long[]> merge(List<long[]> ranges) {
+		if (ranges.size() < 2)
+			return ranges;
+		ranges.sort((r1, r2) -> Long.compare(r1[0], r2[0]));
+		List<long[]> merged = new ArrayList<>(ranges.size());
+		long[] current = ranges.get(0);
+		for (int i = 1; i < ranges.size(); i++) {
+			long[] r = ranges.get(i);
+			if (r[0] <= current[1] + 1)
+				current[1] = Math.max(current[1], r[1]);
+			else {
+				merged.add(current);
+				current = r;
+			}
+		}
+		merged.add(current);
+		return merged;
+	}
+
+}
@@ -0,0 +1,183 @@
+package fr.techgp.nimbus.server.render;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import fr.techgp.nimbus.server.Metrics;
+import freemarker.core.Environment;
+import freemarker.template.Configuration;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateNumberModel;
+import freemarker.template.TemplateScalarModel;
+
+/**
+ * <p>This FreeMarker directive caches the output of template fragments that rarely change :</p>
+ * <ul>
+ * <li>the fragment is identified by the "key" parameter, that the template builds from what the fragment depends on (such as the user)</li>
+ * <li>the output is kept for "ttl" seconds, or for the default TTL given to the constructor, 0 meaning until invalidated</li>
+ * <li>the cache is a LRU map, bounded by the number of fragments</li>
+ * <li>fragments are invalidated by code when their data changes, using {@link FreeMarkerFragmentCache#invalidate(String)} and similar methods</li>
+ * <li>the cache of the default configuration is kept by {@link RenderFreeMarker#defaultFragments()}</li>
+ * </ul>
+ *
+ * <p>Two requests missing the same fragment at the same time both render it, the last one being kept.</p>
+ *
+ * <pre>FreeMarkerFragmentCache fragments = new FreeMarkerFragmentCache(1000, 60).register(configuration);
+ *&lt;@cache key="menu-" + user.id ttl=300&gt;...&lt;/@cache&gt;
+ *fragments.invalidatePrefix("menu-");</pre>
+ */
+public class FreeMarkerFragmentCache implements TemplateDirectiveModel {
+
+	/** the name of the directive registered by {@link FreeMarkerFragmentCache#register(Configuration)} */
+	public static final String DIRECTIVE_NAME = "cache";
+
+	private final int maxEntries;
+	private final long defaultTtl;
+	/** The cached fragments by key, least recently used first, guarded by itself */
+	private final LinkedHashMap<String, Fragment> entries;
+	private Metrics.Counter hits = new Metrics.Counter();
+	private Metrics.Counter misses = new Metrics.Counter();
+
+	/**
+	 * creates a new cache
+	 *
+	 * @param maxEntries the maximum number of cached fragments
+	 * @param defaultTtl the time to live of fragments without "ttl" parameter, in seconds, or 0 to keep them until invalidated
+	 */
+	public FreeMarkerFragmentCache(int maxEntries, long defaultTtl) {
+		this.maxEntries = maxEntries;
+		this.defaultTtl = defaultTtl;
+		this.entries = new LinkedHashMap<String, Fragment>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+				return size() > FreeMarkerFragmentCache.this.maxEntries;
+			}
+		};
+	}
+
+	/** registers this cache as the {@link FreeMarkerFragmentCache#DIRECTIVE_NAME} directive of "configuration", such as {@link RenderFreeMarker#defaultConfiguration()} */
+	public FreeMarkerFragmentCache register(Configuration configuration) {
+		configuration.setSharedVariable(DIRECTIVE_NAME, this);
+		return this;
+	}
+
+	/** then registers fragment hits and misses, and the number of cached fragments, in "metrics" */
+	public FreeMarkerFragmentCache metrics(Metrics metrics) {
+		this.hits = metrics.counter("nimbus_freemarker_fragments_hits_total", "FreeMarker fragments served from the cache", null);
+		this.misses = metrics.counter("nimbus_freemarker_fragments_misses_total", "FreeMarker fragments rendered", null);
+		metrics.gauge("nimbus_freemarker_fragments", "Cached FreeMarker fragments", null, this::size);
+		return this;
+	}
+
+	/** returns the number of fragments served from the cache */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/** returns the number of fragments that needed to be rendered */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/** returns the number of cached fragments, including expired ones not removed yet */
+	public int size() {
+		synchronized (this.entries) {
+			return this.entries.size();
+		}
+	}
+
+	/** removes the fragment identified by "key", if cached */
+	public void invalidate(String key) {
+		synchronized (this.entries) {
+			this.entries.remove(key);
+		}
+	}
+
+	/** removes the fragments whose key starts with "prefix" */
+	public void invalidatePrefix(String prefix) {
+		invalidateIf((key) -> key.startsWith(prefix));
+	}
+
+	/** removes the fragments whose key matches "predicate" */
+	public void invalidateIf(Predicate<String> predicate) {
+		synchronized (this.entries) {
+			this.entries.keySet().removeIf(predicate);
+		}
+	}
+
+	/** empties the cache */
+	public void clear() {
+		synchronized (this.entries) {
+			this.entries.clear();
+		}
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void execute(Environment env, Map params, TemplateModel[] loopVars, TemplateDirectiveBody body) throws TemplateException, IOException {
+		String key = toString(params.get("key"), "key");
+		long ttl = params.containsKey("ttl") ? toNumber(params.get("ttl"), "ttl").longValue() : this.defaultTtl;
+		Writer out = env.getOut();
+		long now = System.nanoTime();
+
+		Fragment fragment;
+		synchronized (this.entries) {
+			fragment = this.entries.get(key);
+		}
+		if (fragment != null && (fragment.ttl == 0 || now - fragment.created < fragment.ttl)) {
+			this.hits.increment();
+			out.write(fragment.content);
+			return;
+		}
+
+		// Render the fragment apart, to cache it
+		this.misses.increment();
+		StringWriter writer = new StringWriter();
+		if (body != null)
+			body.render(writer);
+		String content = writer.toString();
+		synchronized (this.entries) {
+			this.entries.put(key, new Fragment(content, now, ttl <= 0 ? 0 : TimeUnit.SECONDS.toNanos(ttl)));
+		}
+		out.write(content);
+	}
+
+	private static String toString(Object value, String name) throws TemplateModelException {
+		if (value instanceof TemplateScalarModel)
+			return ((TemplateScalarModel) value).getAsString();
+		if (value instanceof TemplateNumberModel)
+			return ((TemplateNumberModel) value).getAsNumber().toString();
+		throw new TemplateModelException("The \"" + name + "\" parameter of the \"" + DIRECTIVE_NAME + "\" directive should be a string");
+	}
+
+	private static Number toNumber(Object value, String name) throws TemplateModelException {
+		if (value instanceof TemplateNumberModel)
+			return ((TemplateNumberModel) value).getAsNumber();
+		throw new TemplateModelException("The \"" + name + "\" parameter of the \"" + DIRECTIVE_NAME + "\" directive should be a number");
+	}
+
+	/** A cached fragment, with it's creation time as {@link System#nanoTime()} and it's time to live in nanoseconds, or 0 */
+	private static final class Fragment {
+		private final String content;
+		private final long created;
+		private final long ttl;
+
+		public Fragment(String content, long created, long ttl) {
+			this.content = content;
+			this.created = created;
+			this.ttl = ttl;
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package fr.techgp.nimbus.server.render;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.function.Supplier;
+
+import javax.servlet.http.HttpServletResponse;
+
+import fr.techgp.nimbus.server.Render;
+import fr.techgp.nimbus.server.Request;
+import fr.techgp.nimbus.server.Response;
+
+/**
+ * <p>This {@link Render} sends "304 Not Modified" when the client's copy is still valid, without building the body :</p>
+ * <ul>
+ * <li>the "ETag" and "Last-Modified" headers are set from a version token given by the route</li>
+ * <li>{@link Request#notModified(String, long)} checks "If-None-Match" and "If-Modified-Since"</li>
+ * <li>the {@link Render} is obtained from the {@link Supplier} only if the full response is needed</li>
+ * </ul>
+ *
+ * <pre>router.get("/api/items", (req, res) -> Render.conditional("v" + items.version(), -1, () -> Render.json(items.toJson())));</pre>
+ */
+public class RenderConditional implements Render {
+
+	private final String etag;
+	private final long lastModified;
+	private final Supplier<Render> body;
+
+	public RenderConditional(String etag, long lastModified, Supplier<Render> body) {
+		super();
+		// ETags are quoted strings, optionally prefixed by "W/" for weak ones
+		this.etag = etag == null || etag.startsWith("\"") || etag.startsWith("W/\"") ? etag : "\"" + etag + "\"";
+		this.lastModified = lastModified;
+		this.body = body;
+	}
+
+	@Override
+	public void render(Request request, Response response, Charset charset, Supplier<OutputStream> stream) throws IOException {
+		if (this.etag != null)
+			response.header("ETag", this.etag);
+		if (this.lastModified >= 0)
+			response.dateHeader("Last-Modified", this.lastModified);
+		// Make clients check the version before using their copy
+		if (response.header("Cache-Control") == null)
+			response.header("Cache-Control", "no-cache");
+
+		if (request.notModified(this.etag, this.lastModified)) {
+			response.status(HttpServletResponse.SC_NOT_MODIFIED);
+			response.length(0);
+			try (OutputStream os = stream.get()) {
+				os.flush();
+			}
+			return;
+		}
+
+		// The body is built now, so errors are rendered here instead of in the route
+		Render render;
+		try {
+			render = this.body.get();
+		} catch (Render.Exception ex) {
+			render = ex.get();
+		} catch (RuntimeException ex) {
+			render = new RenderThrowable(ex);
+		}
+		(render == null ? Render.notFound() : render).render(request, response, charset, stream);
+	}
+
+}
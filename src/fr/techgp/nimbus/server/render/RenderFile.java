@@ -1,20 +1,26 @@
 package fr.techgp.nimbus.server.render;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.function.Supplier;
 
+import fr.techgp.nimbus.server.ContentOutput;
 import fr.techgp.nimbus.server.Render;
 import fr.techgp.nimbus.server.Request;
 import fr.techgp.nimbus.server.Response;
-import fr.techgp.nimbus.utils.IOUtils;
 
 public class RenderFile implements Render {
 
+	/** the minimum size of a file sent from a memory-mapped buffer, smaller files being read by the server through its pooled buffers */
+	public static final long MAPPED_THRESHOLD = 64 * 1024;
+
 	private final File file;
 	private final String mimeType;
 	private final String fileName;
@@ -46,12 +52,21 @@ public class RenderFile implements Render {
 				response.header("Content-Disposition", "inline; filename=\"" + this.fileName + "\"");
 		}
 
+		// Temporary files can not be downloaded again, so ranges are not supported for them
+		if (!this.deleteAfter && this.file.exists()) {
+			long lastModified = this.file.lastModified();
+			response.dateHeader("Last-Modified", lastModified);
+			if (ByteRanges.send(request, response, this.file, this.mimeType, null, lastModified, stream))
+				return;
+		}
+
 		response.length(this.file.length());
 
 		try (OutputStream os = stream.get()) {
 			if (this.file.exists()) {
-				try (InputStream is = new FileInputStream(this.file)) {
-					IOUtils.copy(is, os);
+				try {
+					// A mapped file can not be deleted on some platforms, until the buffer is garbage collected
+					transfer(this.file, os, !this.deleteAfter);
 				} finally {
 					if (this.deleteAfter)
 						this.file.delete();
@@ -60,4 +75,53 @@ public class RenderFile implements Render {
 		}
 	}
 
+	/**
+	 * sends the content of "file" to "os" without copying it through a heap buffer :
+	 * <ul>
+	 * <li>if "os" is a {@link ContentOutput}, the file is given to {@link ContentOutput#sendContent(java.nio.ByteBuffer)} as a memory-mapped
+	 * buffer (when "mapped" is true and the file is large enough) or to {@link ContentOutput#sendContent(java.nio.channels.ReadableByteChannel)}</li>
+	 * <li>otherwise, for instance when "os" compresses data, {@link FileChannel#transferTo(long, long, WritableByteChannel)} is used</li>
+	 * </ul>
+	 */
+	public static final void transfer(File file, OutputStream os, boolean mapped) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (os instanceof ContentOutput) {
+				ContentOutput output = (ContentOutput) os;
+				if (mapped && size >= MAPPED_THRESHOLD && size <= Integer.MAX_VALUE) {
+					MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+					output.sendContent(buffer);
+				} else {
+					output.sendContent(channel);
+				}
+				return;
+			}
+			transfer(channel, 0, size, os, false);
+		}
+	}
+
+	/**
+	 * sends "count" bytes of "channel", starting at "position", to "os", without changing the channel position :
+	 * <ul>
+	 * <li>if "os" is a {@link ContentOutput}, large parts are written as a memory-mapped buffer when "mapped" is true</li>
+	 * <li>otherwise, {@link FileChannel#transferTo(long, long, WritableByteChannel)} is used</li>
+	 * </ul>
+	 *
+	 * <p>Unlike {@link RenderFile#transfer(File, OutputStream, boolean)}, "os" is still writable afterwards.</p>
+	 */
+	public static final void transfer(FileChannel channel, long position, long count, OutputStream os, boolean mapped) throws IOException {
+		if (mapped && os instanceof ContentOutput && count >= MAPPED_THRESHOLD && count <= Integer.MAX_VALUE) {
+			((ContentOutput) os).write(channel.map(FileChannel.MapMode.READ_ONLY, position, count));
+			return;
+		}
+		WritableByteChannel target = Channels.newChannel(os);
+		long offset = 0;
+		while (offset < count) {
+			long n = channel.transferTo(position + offset, count - offset, target);
+			if (n <= 0)
+				break;
+			offset += n;
+		}
+	}
+
 }
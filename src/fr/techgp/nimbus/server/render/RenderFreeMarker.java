@@ -1,34 +1,131 @@
 package fr.techgp.nimbus.server.render;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Supplier;
 
 import fr.techgp.nimbus.server.Render;
 import fr.techgp.nimbus.server.Request;
 import fr.techgp.nimbus.server.Response;
+import freemarker.cache.MruCacheStorage;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
 
 public class RenderFreeMarker implements Render {
 
-	private static final Configuration defaultConfiguration = new Configuration(Configuration.VERSION_2_3_30);
+	/** the default size of the buffer used by {@link RenderFreeMarker#streaming()}, in chars */
+	public static final int BUFFER_SIZE = 8 * 1024;
+	/** the extensions of the files parsed by {@link RenderFreeMarker#precompile(Configuration, File)} */
+	public static final String[] TEMPLATE_EXTENSIONS = { ".ftl", ".ftlh", ".ftlx" };
+
+	/** This holder creates the default configuration when first accessed, so that FreeMarker is not loaded at startup if unused */
+	private static final class DefaultConfiguration {
+		private static final Configuration instance = new Configuration(Configuration.VERSION_2_3_30);
+	}
+
+	/** The configuration set by {@link RenderFreeMarker#defaultConfiguration(Configuration)}, if any */
+	private static volatile Configuration customConfiguration = null;
+	/** The fragment cache set by {@link RenderFreeMarker#defaultFragments(FreeMarkerFragmentCache)}, if any */
+	private static volatile FreeMarkerFragmentCache defaultFragments = null;
 
 	public static final Configuration defaultConfiguration() {
-		return defaultConfiguration;
+		Configuration configuration = customConfiguration;
+		return configuration != null ? configuration : DefaultConfiguration.instance;
+	}
+
+	/** replaces the configuration used when none is given, such as one created by {@link RenderFreeMarker#createConfiguration(File, int, int, long)} */
+	public static final void defaultConfiguration(Configuration configuration) {
+		customConfiguration = configuration;
+	}
+
+	/** returns the fragment cache registered in the default configuration, to invalidate fragments when their data changes, or null if none */
+	public static final FreeMarkerFragmentCache defaultFragments() {
+		return defaultFragments;
+	}
+
+	/** sets the fragment cache registered in the default configuration, see {@link FreeMarkerFragmentCache#register(Configuration)} */
+	public static final void defaultFragments(FreeMarkerFragmentCache fragments) {
+		defaultFragments = fragments;
+	}
+
+	/**
+	 * creates a configuration loading UTF-8 templates from "folder", that rethrows template errors instead of writing them to the page
+	 *
+	 * @param strongCacheSize the number of templates always kept in cache
+	 * @param softCacheSize the number of other templates kept in cache while memory allows
+	 * @param updateDelay the delay in milliseconds before checking again if a cached template changed
+	 */
+	public static final Configuration createConfiguration(File folder, int strongCacheSize, int softCacheSize, long updateDelay) throws IOException {
+		Configuration configuration = new Configuration(Configuration.VERSION_2_3_30);
+		configuration.setDirectoryForTemplateLoading(folder);
+		configuration.setDefaultEncoding("UTF-8");
+		configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+		configuration.setLogTemplateExceptions(false);
+		configuration.setCacheStorage(new MruCacheStorage(strongCacheSize, softCacheSize));
+		configuration.setTemplateUpdateDelayMilliseconds(updateDelay);
+		return configuration;
+	}
+
+	/**
+	 * parses the templates found in "folder" and it's sub-folders, so that they are cached before the first request
+	 *
+	 * @param configuration the configuration loading templates from "folder"
+	 * @return the number of parsed templates, see {@link RenderFreeMarker#TEMPLATE_EXTENSIONS}
+	 * @throws IOException if a template is invalid, to detect errors at startup
+	 */
+	public static final int precompile(Configuration configuration, File folder) throws IOException {
+		Path root = folder.toPath();
+		List<String> names = new ArrayList<>();
+		Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				String fileName = file.getFileName().toString();
+				for (String extension : TEMPLATE_EXTENSIONS) {
+					if (attrs.isRegularFile() && fileName.endsWith(extension)) {
+						StringBuilder sb = new StringBuilder();
+						for (Path name : root.relativize(file)) {
+							sb.append(sb.length() == 0 ? "" : "/").append(name.toString());
+						}
+						names.add(sb.toString());
+						break;
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		for (String name : names) {
+			configuration.getTemplate(name);
+		}
+		return names.size();
 	}
 
 	private Configuration configuration;
 	private String name;
 	private Map<String, Object> attributes;
+	private int bufferSize = 0;
 
 	public RenderFreeMarker(String name, Object... paramAndValues) {
-		this(defaultConfiguration, name, paramAndValues);
+		this(defaultConfiguration(), name, paramAndValues);
 	}
 
 	public RenderFreeMarker(Configuration configuration, String name, Object... paramAndValues) {
@@ -45,13 +142,39 @@ public class RenderFreeMarker implements Render {
 		return this;
 	}
 
+	/** then writes the page to the response while it is generated, see {@link RenderFreeMarker#streaming(int)} */
+	public RenderFreeMarker streaming() {
+		return streaming(BUFFER_SIZE);
+	}
+
+	/**
+	 * then writes the page to the response while it is generated, instead of generating it in memory first.
+	 * The first "bufferSize" chars are kept until the buffer is full, so that a template error in this part still sends a 500 error,
+	 * and a page fitting in the buffer is sent with it's length. Later errors abort the response.
+	 */
+	public RenderFreeMarker streaming(int bufferSize) {
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
 	@Override
 	public void render(Request request, Response response, Charset charset, Supplier<OutputStream> stream)
 			throws IOException {
+		// Recherche du template (dans le cache de la configuration) avant d'écrire quoi que ce soit
+		Template template;
+		try {
+			template = this.configuration.getTemplate(this.name);
+		} catch (IOException ex) {
+			Render.throwable(ex).render(request, response, charset, stream);
+			return;
+		}
+		if (this.bufferSize > 0) {
+			stream(template, request, response, charset, stream);
+			return;
+		}
 		// Génération en mémoire pour pouvoir renvoyer une erreur 500 si besoin
 		StringWriter writer = new StringWriter();
 		try {
-			Template template = this.configuration.getTemplate(this.name);
 			template.process(this.attributes, writer);
 		} catch (TemplateException | IOException ex) {
 			// En cas d'erreur de template, on renvoie une erreur 500
@@ -64,4 +187,107 @@ public class RenderFreeMarker implements Render {
 		}
 	}
 
+	private void stream(Template template, Request request, Response response, Charset charset, Supplier<OutputStream> stream) throws IOException {
+		StreamingWriter writer = new StreamingWriter(response, charset, stream, this.bufferSize);
+		try {
+			template.process(this.attributes, writer);
+		} catch (TemplateException | IOException ex) {
+			// Tant que rien n'est envoyé, on peut encore renvoyer une erreur 500
+			if (!writer.isCommitted()) {
+				Render.throwable(ex).render(request, response, charset, stream);
+				return;
+			}
+			// Sinon, la réponse sera interrompue
+			throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
+		}
+		writer.close();
+	}
+
+	/** A {@link Writer} keeping the first chars in a buffer, then encoding them to the response stream each time the buffer is full */
+	private static final class StreamingWriter extends Writer {
+
+		private final Response response;
+		private final Charset charset;
+		private final Supplier<OutputStream> stream;
+		private final char[] buffer;
+		private int count = 0;
+		private Writer out = null;
+
+		public StreamingWriter(Response response, Charset charset, Supplier<OutputStream> stream, int bufferSize) {
+			this.response = response;
+			this.charset = charset;
+			this.stream = stream;
+			this.buffer = new char[bufferSize];
+		}
+
+		/** returns true once something has been written to the response stream */
+		public boolean isCommitted() {
+			return this.out != null;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			while (len > 0) {
+				if (this.count == this.buffer.length)
+					flushBuffer();
+				int n = Math.min(len, this.buffer.length - this.count);
+				System.arraycopy(cbuf, off, this.buffer, this.count, n);
+				this.count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			while (len > 0) {
+				if (this.count == this.buffer.length)
+					flushBuffer();
+				int n = Math.min(len, this.buffer.length - this.count);
+				str.getChars(off, off + n, this.buffer, this.count);
+				this.count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			if (this.count == this.buffer.length)
+				flushBuffer();
+			this.buffer[this.count++] = (char) c;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// The buffer is kept until it is full, so that errors can still be reported
+			if (this.out != null) {
+				flushBuffer();
+				this.out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.out != null) {
+				flushBuffer();
+				this.out.close();
+				return;
+			}
+			// The whole page fits in the buffer, so it's length is known
+			ByteBuffer bytes = this.charset.encode(CharBuffer.wrap(this.buffer, 0, this.count));
+			this.response.length(bytes.remaining());
+			try (OutputStream os = this.stream.get()) {
+				os.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			}
+		}
+
+		private void flushBuffer() throws IOException {
+			if (this.out == null)
+				this.out = new OutputStreamWriter(this.stream.get(), this.charset);
+			this.out.write(this.buffer, 0, this.count);
+			this.count = 0;
+		}
+	}
+
 }
@@ -0,0 +1,294 @@
+package fr.techgp.nimbus.server.render;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.servlet.http.HttpServletResponse;
+
+import fr.techgp.nimbus.server.ContentOutput;
+import fr.techgp.nimbus.server.PreEncodedHeaders;
+import fr.techgp.nimbus.server.Render;
+import fr.techgp.nimbus.server.Request;
+import fr.techgp.nimbus.server.Response;
+
+/**
+ * <p>This {@link Render} replays a response recorded once, for constant responses :</p>
+ * <ul>
+ * <li>the status, content type, headers and body of a {@link Render} are recorded by {@link RenderFrozen#freeze(Render)}</li>
+ * <li>headers are encoded once when the server supports {@link PreEncodedHeaders}, and the body is kept in a read-only direct {@link ByteBuffer}</li>
+ * <li>each request only sets these immutable values, without encoding or copying anything</li>
+ * </ul>
+ *
+ * <p>The recorded {@link Render} should not depend on the request, nor set cookies. It is recorded with the UTF-8 charset,
+ * and the body is replayed as is, whatever the charset given to {@link RenderFrozen#render(Request, Response, Charset, Supplier)}.</p>
+ *
+ * <pre>Render pong = Render.freeze(Render.string("pong"));
+ *router.get("/ping", (req, res) -> pong);</pre>
+ */
+public class RenderFrozen implements Render {
+
+	/** Frozen versions of the status responses returned by {@link Render}, created when first needed */
+	public static final class Statuses {
+		public static final Render NOT_MODIFIED = freeze(new RenderStatus(HttpServletResponse.SC_NOT_MODIFIED, ""));
+		public static final Render BAD_REQUEST = freeze(new RenderStatus(HttpServletResponse.SC_BAD_REQUEST, "Bad Request"));
+		public static final Render UNAUTHORIZED = freeze(new RenderStatus(HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized"));
+		public static final Render FORBIDDEN = freeze(new RenderStatus(HttpServletResponse.SC_FORBIDDEN, "Forbidden"));
+		public static final Render NOT_FOUND = freeze(new RenderStatus(HttpServletResponse.SC_NOT_FOUND, "Not Found"));
+		public static final Render CONFLICT = freeze(new RenderStatus(HttpServletResponse.SC_CONFLICT, "Conflict"));
+		public static final Render PAYLOAD_TOO_LARGE = freeze(new RenderStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Payload Too Large"));
+		public static final Render TOO_MANY_REQUESTS = freeze(new RenderStatus(429, "Too Many Requests"));
+		public static final Render INTERNAL_SERVER_ERROR = freeze(new RenderStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal Server Error"));
+		public static final Render BAD_GATEWAY = freeze(new RenderStatus(HttpServletResponse.SC_BAD_GATEWAY, "Bad Gateway"));
+		public static final Render SERVICE_UNAVAILABLE = freeze(new RenderStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service Unavailable"));
+		public static final Render GATEWAY_TIMEOUT = freeze(new RenderStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Gateway Timeout"));
+		public static final Render INSUFFICIENT_STORAGE = freeze(new RenderStatus(507, "Insufficient Storage"));
+
+		private Statuses() {
+			//
+		}
+	}
+
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+	private final int status;
+	private final String type;
+	private final String[] names;
+	private final String[] values;
+	private final boolean[] added;
+	/** The headers encoded by the last {@link PreEncodedHeaders} response, reused by responses of the same class */
+	private volatile Encoded encoded = null;
+	private final byte[] bytes;
+	private final ByteBuffer buffer;
+
+	private RenderFrozen(Recorder recorder, byte[] bytes) {
+		this.status = recorder.status;
+		this.type = recorder.type;
+		int count = recorder.names.size();
+		this.names = recorder.names.toArray(new String[count]);
+		this.values = recorder.values.toArray(new String[count]);
+		this.added = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			this.added[i] = recorder.added.get(i);
+		}
+		this.bytes = bytes;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		this.buffer = buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * renders "render" once, to record it's status, content type, headers and body in UTF-8
+	 *
+	 * @throws IllegalArgumentException if "render" needs the request, sets cookies or redirects
+	 */
+	public static final RenderFrozen freeze(Render render) {
+		Recorder recorder = new Recorder();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try {
+			render.render(NO_REQUEST, recorder, StandardCharsets.UTF_8, () -> os);
+		} catch (RequestUsedException ex) {
+			throw new IllegalArgumentException("A render using the request can not be frozen", ex);
+		} catch (IOException ex) {
+			throw new IllegalArgumentException(ex);
+		}
+		return new RenderFrozen(recorder, os.toByteArray());
+	}
+
+	/** replays the recorded response, the body being the one recorded in UTF-8 whatever "charset" is */
+	@Override
+	public void render(Request request, Response response, Charset charset, Supplier<OutputStream> stream) throws IOException {
+		if (this.status != -1)
+			response.status(this.status);
+		if (this.type != null)
+			response.type(this.type);
+		if (this.names.length > 0) {
+			PreEncodedHeaders headers = response instanceof PreEncodedHeaders ? (PreEncodedHeaders) response : null;
+			Object[] fields = headers != null ? encode(headers) : null;
+			for (int i = 0; i < this.names.length; i++) {
+				if (headers != null)
+					headers.header(fields[i], this.added[i]);
+				else if (this.added[i])
+					response.addHeader(this.names[i], this.values[i]);
+				else
+					response.header(this.names[i], this.values[i]);
+			}
+		}
+		response.length(this.bytes.length);
+		try (OutputStream os = stream.get()) {
+			if (os instanceof ContentOutput)
+				((ContentOutput) os).sendContent(this.buffer.duplicate());
+			else
+				os.write(this.bytes);
+		}
+	}
+
+	/** returns the headers encoded by "headers", encoding them again only if the previous ones came from another kind of response */
+	private Object[] encode(PreEncodedHeaders headers) {
+		Encoded encoded = this.encoded;
+		if (encoded == null || encoded.type != headers.getClass()) {
+			Object[] fields = new Object[this.names.length];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = headers.encode(this.names[i], this.values[i]);
+			}
+			encoded = new Encoded(headers.getClass(), fields);
+			this.encoded = encoded;
+		}
+		return encoded.fields;
+	}
+
+	/** The headers encoded by a class of {@link PreEncodedHeaders} response */
+	private static final class Encoded {
+		private final Class<?> type;
+		private final Object[] fields;
+
+		public Encoded(Class<?> type, Object[] fields) {
+			this.type = type;
+			this.fields = fields;
+		}
+	}
+
+	/** The {@link Request} given to the recorded {@link Render}, whose methods throw a {@link RequestUsedException} */
+	private static final Request NO_REQUEST = (Request) Proxy.newProxyInstance(Request.class.getClassLoader(), new Class<?>[] { Request.class },
+			(proxy, method, args) -> {
+				if (method.getDeclaringClass() == Object.class)
+					return method.getName().equals("equals") ? proxy == args[0] : method.getName().equals("hashCode") ? 0 : "NO_REQUEST";
+				throw new RequestUsedException(method.getName());
+			});
+
+	/** The exception thrown when the recorded {@link Render} uses the request */
+	private static final class RequestUsedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public RequestUsedException(String method) {
+			super("Request." + method + "() was called");
+		}
+	}
+
+	/** A {@link Response} recording what a {@link Render} sets */
+	private static final class Recorder implements Response {
+
+		private int status = -1;
+		private String type = null;
+		private final List<String> names = new ArrayList<>();
+		private final List<String> values = new ArrayList<>();
+		private final List<Boolean> added = new ArrayList<>();
+
+		@Override
+		public int status() {
+			return this.status == -1 ? HttpServletResponse.SC_OK : this.status;
+		}
+
+		@Override
+		public void status(int status) {
+			this.status = status;
+		}
+
+		@Override
+		public String type() {
+			return this.type;
+		}
+
+		@Override
+		public void type(String contentType) {
+			this.type = contentType;
+		}
+
+		@Override
+		public Render body() {
+			return null;
+		}
+
+		@Override
+		public void body(Render body) {
+			throw new IllegalArgumentException("A render changing the body can not be frozen");
+		}
+
+		@Override
+		public String header(String name) {
+			for (int i = this.names.size() - 1; i >= 0; i--) {
+				if (this.names.get(i).equalsIgnoreCase(name))
+					return this.values.get(i);
+			}
+			return null;
+		}
+
+		@Override
+		public void header(String name, String value) {
+			for (int i = this.names.size() - 1; i >= 0; i--) {
+				if (this.names.get(i).equalsIgnoreCase(name)) {
+					this.names.remove(i);
+					this.values.remove(i);
+					this.added.remove(i);
+				}
+			}
+			this.names.add(name);
+			this.values.add(value);
+			this.added.add(Boolean.FALSE);
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			boolean exists = header(name) != null;
+			this.names.add(name);
+			this.values.add(value);
+			this.added.add(exists);
+		}
+
+		@Override
+		public void intHeader(String name, int value) {
+			header(name, Integer.toString(value));
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+			addHeader(name, Integer.toString(value));
+		}
+
+		@Override
+		public void dateHeader(String name, long value) {
+			header(name, HTTP_DATE.format(Instant.ofEpochMilli(value)));
+		}
+
+		@Override
+		public void addDateHeader(String name, long value) {
+			addHeader(name, HTTP_DATE.format(Instant.ofEpochMilli(value)));
+		}
+
+		@Override
+		public void length(long length) {
+			// The length of the recorded body is used instead
+		}
+
+		@Override
+		public void cookie(String name, String value) {
+			throw new IllegalArgumentException("A render setting cookies can not be frozen");
+		}
+
+		@Override
+		public void cookie(String name, String path, String value, String domain, int maxAge, boolean secure, boolean httpOnly) {
+			throw new IllegalArgumentException("A render setting cookies can not be frozen");
+		}
+
+		@Override
+		public void removeCookie(String name) {
+			throw new IllegalArgumentException("A render setting cookies can not be frozen");
+		}
+
+		@Override
+		public Render redirect(String location) {
+			throw new IllegalArgumentException("A redirection can not be frozen");
+		}
+	}
+
+}
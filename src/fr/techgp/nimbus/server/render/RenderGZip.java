@@ -10,6 +10,7 @@ import java.util.zip.GZIPOutputStream;
 import fr.techgp.nimbus.server.Render;
 import fr.techgp.nimbus.server.Request;
 import fr.techgp.nimbus.server.Response;
+import fr.techgp.nimbus.server.Utils;
 
 public class RenderGZip implements Render {
 
@@ -27,7 +28,7 @@ public class RenderGZip implements Render {
 			throws IOException {
 		this.delegate.render(request, response, charset, () -> {
 			// Check if browser supports "gzip"
-			boolean acceptGzip = Optional.ofNullable(request.header("Accept-Encoding")).orElse("").contains("gzip");
+			boolean acceptGzip = Utils.acceptsEncoding(request, "gzip");
 			// Check if route handler asked for gzip
 			boolean wantGzip = Optional.ofNullable(response.header("Content-Encoding")).orElse("").contains("gzip");
 			// Check that Content-Length header is not set (because le length would change)
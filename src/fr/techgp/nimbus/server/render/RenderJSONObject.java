@@ -0,0 +1,68 @@
+package fr.techgp.nimbus.server.render;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.function.Supplier;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.stream.JsonWriter;
+
+import fr.techgp.nimbus.server.MimeTypes;
+import fr.techgp.nimbus.server.Render;
+import fr.techgp.nimbus.server.Request;
+import fr.techgp.nimbus.server.Response;
+
+/**
+ * <p>This {@link Render} serializes an object to JSON directly in the response, without building a {@link JsonElement} tree :</p>
+ * <ul>
+ * <li>a shared {@link Gson} instance is used, which is thread-safe and caches the type adapter of each class after first use</li>
+ * <li>the shared instance can be replaced at startup, for instance to register generated {@link TypeAdapterFactory}</li>
+ * <li>the JSON is written with a {@link JsonWriter} through a buffer of {@link RenderJSONStream#BUFFER_SIZE} bytes</li>
+ * </ul>
+ *
+ * <pre>router.get("/api/item/:id", (req, res) -> Render.json(items.get(req.pathParameter(":id"))));</pre>
+ */
+public class RenderJSONObject implements Render {
+
+	private static volatile Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+	/** returns the shared {@link Gson} instance */
+	public static final Gson gson() {
+		return gson;
+	}
+
+	/** replaces the shared {@link Gson} instance, usually at startup, for instance with <code>new GsonBuilder().registerTypeAdapterFactory(...).create()</code> */
+	public static final void gson(Gson instance) {
+		gson = instance;
+	}
+
+	private final Object object;
+	private final Type type;
+
+	public RenderJSONObject(Object object) {
+		this(object, object == null ? Object.class : object.getClass());
+	}
+
+	public RenderJSONObject(Object object, Type type) {
+		this.object = object;
+		this.type = type;
+	}
+
+	@Override
+	@SuppressWarnings("resource")
+	public void render(Request request, Response response, Charset charset, Supplier<OutputStream> stream) throws IOException {
+		response.type(MimeTypes.JSON);
+		// Not closed on failure, which would end the response as if it were complete
+		JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(stream.get(), charset), RenderJSONStream.BUFFER_SIZE));
+		gson.toJson(this.object, this.type, writer);
+		writer.close();
+	}
+
+}
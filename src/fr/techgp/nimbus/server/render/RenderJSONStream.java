@@ -0,0 +1,88 @@
+package fr.techgp.nimbus.server.render;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+
+import fr.techgp.nimbus.server.MimeTypes;
+import fr.techgp.nimbus.server.Render;
+import fr.techgp.nimbus.server.Request;
+import fr.techgp.nimbus.server.Response;
+
+/**
+ * <p>This {@link Render} writes a JSON array element by element, with constant memory :</p>
+ * <ul>
+ * <li>each element is converted when it is written, and written with a {@link JsonWriter} to the response</li>
+ * <li>the length is unknown, so the response is chunked (or compressed by {@link RenderGZip})</li>
+ * <li>a {@link Stream} is closed when rendering is over, or fails, to release it's resources (such as a database cursor)</li>
+ * </ul>
+ *
+ * <p>As the response is committed before the end, a failure can not change the status anymore : the connection is aborted instead.
+ * For that, the response is only closed when the whole array is written, so that the failure reaches the server while the response is open.</p>
+ */
+public class RenderJSONStream<T> implements Render {
+
+	private static final Logger logger = LoggerFactory.getLogger(RenderJSONStream.class);
+
+	/** the size of the buffer between the {@link JsonWriter} and the response */
+	public static final int BUFFER_SIZE = 8 * 1024;
+
+	/** The adapter writing a {@link JsonElement}, keeping null values as {@link JsonElement#toString()} does in {@link RenderJSON} */
+	private static final TypeAdapter<JsonElement> ADAPTER = new Gson().getAdapter(JsonElement.class);
+
+	private final Iterator<T> iterator;
+	private final AutoCloseable resource;
+	private final Function<T, JsonElement> transformer;
+
+	public RenderJSONStream(Iterator<T> iterator, Function<T, JsonElement> transformer) {
+		this.iterator = iterator;
+		this.resource = iterator instanceof AutoCloseable ? (AutoCloseable) iterator : null;
+		this.transformer = transformer;
+	}
+
+	public RenderJSONStream(Stream<T> stream, Function<T, JsonElement> transformer) {
+		this.iterator = stream.iterator();
+		this.resource = stream;
+		this.transformer = transformer;
+	}
+
+	@Override
+	@SuppressWarnings("resource")
+	public void render(Request request, Response response, Charset charset, Supplier<OutputStream> stream) throws IOException {
+		response.type(MimeTypes.JSON);
+		try {
+			// Not closed on failure, which would end the response as if it were complete
+			JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(stream.get(), charset), BUFFER_SIZE));
+			writer.beginArray();
+			while (this.iterator.hasNext()) {
+				ADAPTER.write(writer, this.transformer.apply(this.iterator.next()));
+			}
+			writer.endArray();
+			writer.close();
+		} finally {
+			if (this.resource != null) {
+				try {
+					this.resource.close();
+				} catch (java.lang.Exception ex) {
+					// The response is already written, but the resource may leak
+					logger.warn("Failed to close " + this.resource.getClass().getName() + " after rendering JSON", ex);
+				}
+			}
+		}
+	}
+
+}
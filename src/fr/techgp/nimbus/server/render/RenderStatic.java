@@ -1,9 +1,7 @@
 package fr.techgp.nimbus.server.render;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.charset.Charset;
@@ -17,7 +15,7 @@ import javax.servlet.http.HttpServletResponse;
 import fr.techgp.nimbus.server.Render;
 import fr.techgp.nimbus.server.Request;
 import fr.techgp.nimbus.server.Response;
-import fr.techgp.nimbus.utils.IOUtils;
+import fr.techgp.nimbus.server.Utils;
 
 public class RenderStatic implements Render {
 
@@ -35,9 +33,21 @@ public class RenderStatic implements Render {
 		// En-tête
 		response.type(this.mimeType != null ? this.mimeType : "application/octet-stream");
 
+		// Utiliser la version pré-compressée "fichier.ext.gz" si elle est à jour, sauf pour les demandes de plages
+		File sent = this.file;
+		File precompressed = precompressed(this.file);
+		if (precompressed != null) {
+			response.header("Vary", "Accept-Encoding");
+			boolean acceptGzip = Utils.acceptsEncoding(request, "gzip");
+			if (acceptGzip && request.header("Range") == null) {
+				sent = precompressed;
+				response.header("Content-Encoding", "gzip");
+			}
+		}
+
 		// La date de modification du fichier sert de date pour le cache
-		long lastModified = this.file.lastModified();
-		String etag = etag(this.file);
+		long lastModified = sent.lastModified();
+		String etag = etag(sent);
 
 		// En-têtes correspondantes aux infos calculées du cache
 		response.header("Cache-Control", "no-cache");
@@ -53,13 +63,14 @@ public class RenderStatic implements Render {
 				// Tant pis, pas de cache
 				response.status(HttpServletResponse.SC_OK);
 				response.dateHeader("Date", lastModified);
+				// Envoyer uniquement les plages demandées, si le fichier n'a pas changé depuis "If-Range"
+				if (ByteRanges.send(request, response, sent, this.mimeType, etag, lastModified, stream))
+					return;
 				// Envoyer le fichier demandé
-				response.length(this.file.length());
-				try (InputStream is = new FileInputStream(this.file)) {
-					try (OutputStream os = stream.get()) {
-						IOUtils.copy(is, os);
-						return;
-					}
+				response.length(sent.length());
+				try (OutputStream os = stream.get()) {
+					RenderFile.transfer(sent, os, true);
+					return;
 				}
 			}
 		}
@@ -72,8 +83,17 @@ public class RenderStatic implements Render {
 		}
 	}
 
+	/** retourne le fichier "file.gz" s'il existe et qu'il est plus récent que "file", ou null sinon */
+	public static final File precompressed(File file) {
+		if (file.getName().endsWith(".gz"))
+			return null;
+		File gz = new File(file.getPath() + ".gz");
+		long lastModified = gz.lastModified();
+		return (lastModified != 0L && lastModified >= file.lastModified() && gz.isFile()) ? gz : null;
+	}
+
 	/** https://developer.mozilla.org/fr/docs/Web/HTTP/Headers/ETag */
-	private String etag(File file) throws IOException {
+	public static final String etag(File file) throws IOException {
 		try {
 			MessageDigest digest = MessageDigest.getInstance("SHA-1");
 			String digestValue = file.getAbsolutePath() + "?" + file.lastModified();
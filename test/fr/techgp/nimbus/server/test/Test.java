@@ -1,15 +1,24 @@
 package fr.techgp.nimbus.server.test;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 import fr.techgp.nimbus.server.Cookie;
 import fr.techgp.nimbus.server.MimeTypes;
@@ -21,11 +30,20 @@ import fr.techgp.nimbus.server.Session;
 import fr.techgp.nimbus.server.Session.ClientSession;
 import fr.techgp.nimbus.server.Session.ServerSession;
 import fr.techgp.nimbus.server.Upload;
+import fr.techgp.nimbus.server.Utils;
+import fr.techgp.nimbus.server.impl.IPRangeIndex;
 import fr.techgp.nimbus.server.impl.JettyServer;
 import fr.techgp.nimbus.server.impl.MethodRoute;
+import fr.techgp.nimbus.server.impl.RateLimitFilter;
+import fr.techgp.nimbus.server.impl.ServletRequest;
+import fr.techgp.nimbus.server.impl.StaticFileCache;
+import fr.techgp.nimbus.server.impl.StaticFolderIndex;
+import fr.techgp.nimbus.server.render.FreeMarkerFragmentCache;
+import fr.techgp.nimbus.server.render.RenderFreeMarker;
 import fr.techgp.nimbus.utils.FunctionalUtils.ConsumerWithException;
 import fr.techgp.nimbus.utils.IOUtils;
 import fr.techgp.nimbus.utils.WebUtils.MultiPartAdapter;
+import freemarker.template.Configuration;
 
 public class Test {
 
@@ -35,6 +53,7 @@ public class Test {
 	private final String request;
 	private String method = "GET";
 	private ConsumerWithException<HttpURLConnection, Exception> customizer;
+	private ConsumerWithException<HttpURLConnection, Exception> verifier;
 	private int status = 200;
 	private String mimetype = "text/html;charset=utf-8";
 	private int length = -1;
@@ -52,6 +71,7 @@ public class Test {
 
 	public Test method(String method) { this.method = method; return this; }
 	public Test customize(ConsumerWithException<HttpURLConnection, Exception> customizer) { this.customizer = customizer; return this; }
+	public Test verify(ConsumerWithException<HttpURLConnection, Exception> verifier) { this.verifier = verifier; return this; }
 	public Test status(int status) { this.status = status; return this; }
 	public Test mimetype(String mimetype) { this.mimetype = mimetype; return this; }
 	public Test length(int length) { this.length = length; return this; }
@@ -100,6 +120,20 @@ public class Test {
 			if (Test.cookieLine == null)
 				throw new Exception("Cookie manquant");
 		}
+		if (this.verifier != null)
+			this.verifier.accept(connection);
+	}
+
+	public static void sendBody(HttpURLConnection connection, String body, boolean chunked) throws Exception {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		connection.setDoOutput(true);
+		if (chunked)
+			connection.setChunkedStreamingMode(4);
+		else
+			connection.setFixedLengthStreamingMode(bytes.length);
+		try (OutputStream os = connection.getOutputStream()) {
+			os.write(bytes);
+		}
 	}
 
 	public static Test get(String request) { return new Test(request).method("GET"); }
@@ -145,6 +179,13 @@ public class Test {
 		}
 	}
 
+	public static class JsonTest {
+		public String name = "aaa";
+		public int id = 12;
+		public List<String> tags = List.of("a", "b");
+		public String empty = null;
+	}
+
 	public static void main(String[] args) {
 		try {
 			Router r = new Router();
@@ -156,6 +197,7 @@ public class Test {
 			r.get("/error", (req, res) -> { throw new RuntimeException("error"); });
 			r.get("/empty", (req, res) -> Render.EMPTY);
 			r.get("/hello", (req, res) -> Render.string("world"));
+			r.get("/ip", (req, res) -> Render.string(Utils.extractIPWithProxy(req)));
 			r.get("/bytes", (req, res) -> Render.bytes("bytes".getBytes(StandardCharsets.UTF_8), "application/octet-stream", "data.bin", false));
 			r.route("/anymethod", (req, res) -> Render.string("OK"));
 			r.post("/json", (req, res) -> {
@@ -164,6 +206,8 @@ public class Test {
 				o.addProperty("id", req.queryParameterInteger("id", null));
 				return Render.json(o);
 			});
+			r.get("/jsonobject", (req, res) -> Render.json(new JsonTest()));
+			r.get("/jsonstream", (req, res) -> Render.json(Stream.of("a", "b", "c"), JsonPrimitive::new));
 			r.get("/redirect", (req, res) -> Render.redirect("/hello"));
 			r.redirect("/redirect2", "/redirect");
 			r.get("/samepage", (req, res) -> Render.samePage());
@@ -189,6 +233,58 @@ public class Test {
 				}
 			});
 
+			r.before("/ratelimit", new RateLimitFilter(1, 16).rule("/ratelimit", 2, 0.01));
+			r.get("/ratelimit", (req, res) -> Render.string("OK"));
+
+			r.limit("/limited", 10);
+			r.post("/limited", (req, res) -> Render.string(IOUtils.toStringUTF8(((ServletRequest) req).raw().getInputStream())));
+
+			File staticFile = File.createTempFile("nimbus", ".txt");
+			staticFile.deleteOnExit();
+			Files.write(staticFile.toPath(), "0123456789".getBytes(StandardCharsets.UTF_8));
+			r.get("/static", (req, res) -> Render.staticFile(staticFile, "text/plain"));
+			File compressedFile = new File(staticFile.getPath() + ".gz");
+			compressedFile.deleteOnExit();
+			try (OutputStream os = new GZIPOutputStream(new FileOutputStream(compressedFile))) {
+				os.write("0123456789".getBytes(StandardCharsets.UTF_8));
+			}
+
+			File cachedFolder = Files.createTempDirectory("nimbus").toFile();
+			cachedFolder.deleteOnExit();
+			File cachedFile = new File(cachedFolder, "cached.txt");
+			cachedFile.deleteOnExit();
+			Files.write(cachedFile.toPath(), "cached".getBytes(StandardCharsets.UTF_8));
+			StaticFolderIndex index = new StaticFolderIndex(cachedFolder).start();
+			StaticFileCache cache = new StaticFileCache(1024, 256);
+			r.get("/cached/*", (req, res) -> {
+				StaticFolderIndex.Metadata metadata = index.get(req.path().substring("/cached".length()));
+				return metadata == null ? null : cache.render(metadata);
+			});
+
+			r.get("/conditional", (req, res) -> Render.conditional("v1", 1_500_000_000_000L, () -> Render.string("world")));
+			Render frozen = Render.freeze(Render.bytes("frozen".getBytes(StandardCharsets.UTF_8), "application/octet-stream", "data.bin", false));
+			r.get("/frozen", (req, res) -> frozen);
+
+			File templates = Files.createTempDirectory("nimbus").toFile();
+			templates.deleteOnExit();
+			for (String[] template : new String[][] { { "hello.ftl", "Hello ${name}" }, { "error.ftl", "Hello ${missing}" }, { "fragment.ftl", "<@cache key=\"f\">${name}</@cache> ${name}" } }) {
+				File file = new File(templates, template[0]);
+				file.deleteOnExit();
+				Files.write(file.toPath(), template[1].getBytes(StandardCharsets.UTF_8));
+			}
+			Configuration configuration = RenderFreeMarker.createConfiguration(templates, 10, 10, 5000);
+			assertThat(RenderFreeMarker.precompile(configuration, templates) == 3);
+			FreeMarkerFragmentCache fragments = new FreeMarkerFragmentCache(10, 0).register(configuration);
+			r.get("/freemarker/:name", (req, res) -> new RenderFreeMarker(configuration, req.pathParameter("name") + ".ftl", "name", "world").streaming());
+			r.get("/fragment", (req, res) -> {
+				if (req.queryParameter("invalidate") != null)
+					fragments.invalidate("f");
+				return new RenderFreeMarker(configuration, "fragment.ftl", "name", req.queryParameter("name"));
+			});
+
+			r.proxy("/proxy", "http://localhost:" + PORT);
+			r.proxy("/down", "http://localhost:1");
+
 			r.after("/*", (req, res) -> { res.header("After1", "After1"); return null; });
 
 			JettyServer s = new JettyServer(PORT);
@@ -198,9 +294,11 @@ public class Test {
 
 			try {
 				runAllTests();
+				runCacheTests(cache, cachedFile);
 				System.out.println("OK");
 			} finally {
 				s.stop();
+				index.close();
 			}
 		} catch (Exception ex) {
 			ex.printStackTrace();
@@ -224,6 +322,10 @@ public class Test {
 		new Test("/anymethod").method("PUT").body("OK").run();
 		// Checking JSON response
 		post("/json?name=aaa&id=12").mimetype(MimeTypes.JSON).body("{\"name\":\"aaa\",\"id\":12}").run();
+		// Calling "/jsonobject" should serialize the object, without null fields
+		get("/jsonobject").mimetype(MimeTypes.JSON).body("{\"name\":\"aaa\",\"id\":12,\"tags\":[\"a\",\"b\"]}").run();
+		// Calling "/jsonstream" should return the streamed JSON array
+		get("/jsonstream").mimetype(MimeTypes.JSON).body("[\"a\",\"b\",\"c\"]").run();
 		// Checking redirection from "/redirect" to "/world"
 		get("/redirect").length(5).body("world").filters(true, true, true).run();
 		// Checking helper method Router.redirect
@@ -266,6 +368,158 @@ public class Test {
 		Thread.sleep(3000); // wait for session timeout
 		get("/session?client=false&value=tata").cookie(true, false).length(0).run(); // send cookie, expired session, no result
 
+		// Check rate limit, allowing a burst of 2 requests
+		get("/ratelimit").body("OK").header("X-RateLimit-Limit", "2").header("X-RateLimit-Remaining", "1").run();
+		get("/ratelimit").body("OK").header("X-RateLimit-Remaining", "0").run();
+		get("/ratelimit").status(429).header("X-RateLimit-Remaining", "0").header("Retry-After", "100").run();
+
+		// Check IP ranges used by the block list : parsers, CIDR prefixes, merges and P2P lines
+		checkIPRangeIndex();
+
+		// Check request body size limit, using "Content-Length" or reading chunks
+		post("/limited").customize(c -> sendBody(c, "0123456789", false)).body("0123456789").run();
+		post("/limited").customize(c -> sendBody(c, "0123456789A", false)).status(413).filters(false, false, false).header("Connection", "close").run();
+		post("/limited").customize(c -> sendBody(c, "0123456789A", true)).status(413).header("Connection", "close").run();
+
+		// Check static files, with byte ranges
+		get("/static").length(10).body("0123456789").mimetype("text/plain").header("Accept-Ranges", "bytes").run();
+		get("/static").customize(c -> c.addRequestProperty("Range", "bytes=2-4")).status(206).length(3).body("234").mimetype("text/plain").header("Content-Range", "bytes 2-4/10").run();
+		get("/static").customize(c -> c.addRequestProperty("Range", "bytes=-3")).status(206).body("789").mimetype("text/plain").header("Content-Range", "bytes 7-9/10").run();
+		get("/static").customize(c -> { c.addRequestProperty("Range", "bytes=2-4"); c.addRequestProperty("If-Range", "\"outdated\""); }).status(200).body("0123456789").mimetype("text/plain").run();
+		get("/static").customize(c -> c.addRequestProperty("Range", "bytes=20-")).status(416).mimetype(null).header("Content-Range", "bytes */10").run();
+		get("/static").customize(c -> c.addRequestProperty("Range", "bytes=0-1,8-")).status(206).mimetype(null).verify(c -> {
+			String prefix = "multipart/byteranges; boundary=";
+			assertThat(c.getContentType() != null && c.getContentType().startsWith(prefix));
+			String boundary = c.getContentType().substring(prefix.length());
+			String body;
+			try (InputStream is = c.getInputStream()) {
+				body = IOUtils.toStringUTF8(is);
+			}
+			assertThat(c.getContentLengthLong() == body.length());
+			assertThat(body.startsWith("\r\n--" + boundary + "\r\n"));
+			assertThat(body.contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n--" + boundary + "\r\n"));
+			assertThat(body.endsWith("Content-Range: bytes 8-9/10\r\n\r\n89\r\n--" + boundary + "--\r\n"));
+		}).run();
+		get("/static").customize(c -> c.addRequestProperty("Range", "bytes=4-5,0-3,2-4")).status(206).length(6).body("012345").mimetype("text/plain").header("Content-Range", "bytes 0-5/10").run();
+		get("/static").customize(c -> c.addRequestProperty("Range", "bytes=0-1,2-3,-2")).status(206).mimetype(null).verify(c -> {
+			String body;
+			try (InputStream is = c.getInputStream()) {
+				body = IOUtils.toStringUTF8(is);
+			}
+			assertThat(body.contains("Content-Range: bytes 0-3/10\r\n\r\n0123\r\n"));
+			assertThat(body.contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n"));
+		}).run();
+		get("/static").customize(c -> c.addRequestProperty("Accept-Encoding", "gzip")).mimetype("text/plain").header("Content-Encoding", "gzip").header("Vary", "Accept-Encoding").run();
+		get("/static").customize(c -> c.addRequestProperty("Accept-Encoding", "gzip;q=0, *")).body("0123456789").mimetype("text/plain").verify(c -> assertThat(c.getHeaderField("Content-Encoding") == null)).run();
+		get("/static").customize(c -> c.addRequestProperty("Accept-Encoding", "br, *;q=0.5")).mimetype("text/plain").header("Content-Encoding", "gzip").run();
+		get("/static").customize(c -> { c.addRequestProperty("Accept-Encoding", "gzip"); c.addRequestProperty("Range", "bytes=2-4"); }).status(206).body("234").mimetype("text/plain").run();
+
+		// Check conditional rendering, using "If-None-Match" before "If-Modified-Since"
+		get("/conditional").length(5).body("world").header("ETag", "\"v1\"").run();
+		get("/conditional").customize(c -> c.addRequestProperty("If-None-Match", "W/\"v0\", \"v1\"")).status(304).mimetype(null).run();
+		get("/conditional").customize(c -> { c.addRequestProperty("If-None-Match", "\"v0\""); c.setIfModifiedSince(1_500_000_000_000L); }).body("world").run();
+		get("/conditional").customize(c -> c.setIfModifiedSince(1_500_000_000_000L)).status(304).mimetype(null).run();
+		// Check streamed FreeMarker templates, template errors being catched in the buffer
+		get("/freemarker/hello").length(11).body("Hello world").run();
+		get("/freemarker/error").status(500).mimetype(MimeTypes.TEXT).run();
+		// Check that cached fragments are reused until invalidated
+		get("/fragment?name=a").body("a a").run();
+		get("/fragment?name=b").body("a b").run();
+		get("/fragment?name=c&invalidate").body("c c").run();
+		// Check that a frozen render replays it's type, headers and body on each request
+		get("/frozen").length(6).body("frozen").mimetype(MimeTypes.BINARY).header("Content-Disposition", "inline; filename=\"data.bin\"").run();
+		get("/frozen").length(6).body("frozen").mimetype(MimeTypes.BINARY).header("Content-Disposition", "inline; filename=\"data.bin\"").run();
+
+		// Check reverse proxy, using this server as upstream, with streamed request and response bodies
+		get("/proxy/hello").length(5).body("world").filters(true, true, true).run();
+		get("/proxy/bytes").body("bytes").mimetype(MimeTypes.BINARY).header("Content-Disposition", "inline; filename=\"data.bin\"").run();
+		post("/proxy/limited").customize(c -> sendBody(c, "0123456789", true)).body("0123456789").run();
+		get("/down/hello").status(502).filters(true, false, true).run();
+		// Check that the client can not choose the IP address seen upstream
+		get("/proxy/ip").customize(c -> { c.addRequestProperty("X-Real-IP", "6.6.6.6"); c.addRequestProperty("X-Forwarded-For", "6.6.6.6"); }).filters(true, true, true).verify(c -> {
+			try (InputStream is = c.getInputStream()) {
+				assertThat(InetAddress.getByName(IOUtils.toStringUTF8(is)).isLoopbackAddress());
+			}
+		}).run();
+		// Check that the upstream path is the decoded path after the prefix, encoded again, and that dot segments stay below the prefix
+		get("/%70roxy/%68ello").length(5).body("world").filters(true, true, true).run();
+		get("/proxy/other/../hello").length(5).body("world").filters(true, true, true).run();
+		// Encoded dot segments are ambiguous, and rejected by Jetty before routing
+		get("/proxy/%2e%2e/proxy/hello").status(400).mimetype(null).filters(false, false, false).run();
+
 		// to continue...
 	}
+
+	private static final void checkIPRangeIndex() throws Exception {
+		// IPv6 parser : compressed forms, embedded IPv4 and invalid groups
+		assertThat(IPRangeIndex.parseIPv6("::", true) == 0 && IPRangeIndex.parseIPv6("::", false) == 0);
+		assertThat(IPRangeIndex.parseIPv6("1::", true) == 0x0001_0000_0000_0000L && IPRangeIndex.parseIPv6("1::", false) == 0);
+		assertThat(IPRangeIndex.parseIPv6("::1", true) == 0 && IPRangeIndex.parseIPv6("::1", false) == 1);
+		assertThat(IPRangeIndex.parseIPv6("[fe80::1%eth0]", true) == 0xfe80_0000_0000_0000L && IPRangeIndex.parseIPv6("[fe80::1%eth0]", false) == 1);
+		assertThat(IPRangeIndex.parseIPv6("::ffff:1.2.3.4", false) == 0x0000_ffff_0102_0304L);
+		assertThat(IPRangeIndex.parseIPv6("64:ff9b::10.0.0.1", true) == 0x0064_ff9b_0000_0000L && IPRangeIndex.parseIPv6("64:ff9b::10.0.0.1", false) == 0x0a00_0001L);
+		assertThat(IPRangeIndex.parseIPv6("1:2:3:4:5:6:7:8", true) == 0x0001_0002_0003_0004L && IPRangeIndex.parseIPv6("1:2:3:4:5:6:7:8", false) == 0x0005_0006_0007_0008L);
+		for (String invalid : new String[] { ":", ":1::", "1:", "12345::", "g::1", "1::2::3", "1:2:3:4:5:6:7:8:9", "1:2:3:4::5:6:7:8", "1:2:3:4:5:6:7", "::1.2.3", "::256.1.1.1" }) {
+			try {
+				IPRangeIndex.parseIPv6(invalid, true);
+				throw new AssertionError(invalid);
+			} catch (IllegalArgumentException ex) {
+				// expected
+			}
+		}
+		assertThat(IPRangeIndex.parseIPv4("1.2.3.4", 0, 7) == 0x01020304L && IPRangeIndex.parseIPv4("1.2.3.256", 0, 9) == -1 && IPRangeIndex.parseIPv4("1.2.3", 0, 5) == -1);
+
+		// CIDR prefixes, IPv4-mapped addresses being checked as IPv4
+		IPRangeIndex index = IPRangeIndex.load(new StringReader("10.1.2.3/32\n192.168.0.0/16\n2001:db8::/64\n2001:db8:1::1/128\n# comment\n1.2.3.4/33\n2001:db8::/129\n"));
+		assertThat(index.sizeIPv4() == 2 && index.sizeIPv6() == 2);
+		assertThat(index.contains("10.1.2.3") && !index.contains("10.1.2.4") && !index.contains("10.1.2.2"));
+		assertThat(index.contains("192.168.255.255") && !index.contains("192.169.0.0") && index.contains("::ffff:192.168.1.1"));
+		assertThat(index.contains("2001:db8::ffff:ffff:ffff:ffff") && !index.contains("2001:db8:0:1::") && index.contains("[2001:db8::1]"));
+		assertThat(index.contains("2001:db8:1::1") && !index.contains("2001:db8:1::2"));
+		assertThat(!index.contains("not an ip") && !index.contains("1::2::3") && !index.contains(null));
+		IPRangeIndex all = IPRangeIndex.load(new StringReader("0.0.0.0/0\n::/0\n"));
+		assertThat(all.contains("0.0.0.0") && all.contains("255.255.255.255") && all.contains("::") && all.contains("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+
+		// Overlapping and adjacent ranges are merged, including with a carry between the 64-bit halves of IPv6 addresses
+		IPRangeIndex merged = new IPRangeIndex.Builder()
+				.addIPv4(10, 20).addIPv4(15, 30).addIPv4(31, 40).addIPv4(50, 60).addIPv4(0xffffffffL, 0xfffffff0L)
+				.addIPv6(0, 0, 0, -1L).addIPv6(1, 0, 1, 10).addIPv6(1, 5, 1, 20).addIPv6(2, 0, 2, 0)
+				.build();
+		assertThat(merged.sizeIPv4() == 3 && merged.containsIPv4(35) && !merged.containsIPv4(45) && merged.containsIPv4(0xfffffff8L));
+		assertThat(merged.sizeIPv6() == 2 && merged.containsIPv6(0, -1L) && merged.containsIPv6(1, 20) && !merged.containsIPv6(1, 21) && merged.containsIPv6(2, 0));
+
+		// P2P lines, whose description may contain ':' or '-'
+		IPRangeIndex p2p = IPRangeIndex.load(new StringReader("Some: Org - bad:1.2.3.4-1.2.3.10\nEvil-Corp:2001:db8::1-2001:db8::ff\n"));
+		assertThat(p2p.contains("1.2.3.4") && p2p.contains("1.2.3.10") && !p2p.contains("1.2.3.11"));
+		assertThat(p2p.contains("2001:db8::80") && !p2p.contains("2001:db8::100") && !p2p.contains("2001:db8::"));
+	}
+
+	private static final void runCacheTests(StaticFileCache cache, File cachedFile) throws Exception {
+		// A file is read from the file system on it's first miss, then loaded in memory on the second one, and served from memory
+		get("/cached/cached.txt").length(6).body("cached").mimetype(MimeTypes.TEXT).run();
+		assertThat(cache.getHits() == 0 && cache.getMisses() == 1 && cache.getSize() == 0);
+		get("/cached/cached.txt").length(6).body("cached").mimetype(MimeTypes.TEXT).run();
+		assertThat(cache.getHits() == 0 && cache.getMisses() == 2 && cache.getSize() == 6);
+		get("/cached/cached.txt").length(6).body("cached").mimetype(MimeTypes.TEXT).run();
+		assertThat(cache.getHits() == 1);
+		// A change detected by the index invalidates the cached file, replaced at once as it is in use
+		Files.write(cachedFile.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+		long timeout = System.currentTimeMillis() + 10_000;
+		while (true) {
+			try {
+				get("/cached/cached.txt").length(7).body("changed").mimetype(MimeTypes.TEXT).run();
+				break;
+			} catch (Exception ex) {
+				if (System.currentTimeMillis() > timeout)
+					throw ex;
+				Thread.sleep(100);
+			}
+		}
+		assertThat(cache.getSize() == 7);
+		long hits = cache.getHits();
+		get("/cached/cached.txt").length(7).body("changed").mimetype(MimeTypes.TEXT).run();
+		assertThat(cache.getHits() == hits + 1);
+		// Missing files are answered by the index, without file system access
+		get("/cached/missing.txt").status(404).run();
+	}
 }
\ No newline at end of file